@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import at.bitfire.davdroid.resource.Contact;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.InvalidResourceException;
+import lombok.Cleanup;
+
+public class ParserContextTest extends InstrumentationTestCase {
+	AssetManager assetMgr;
+
+	public void setUp() {
+		assetMgr = getInstrumentation().getContext().getResources().getAssets();
+		ParserContext.reset();
+	}
+
+
+	public void testWarmUp() {
+		ParserContext context = ParserContext.get();
+		assertSame(context, ParserContext.get());
+
+		// instances are created on first use and reused afterwards
+		assertNotNull(context.newCalendarBuilder());
+		assertNotSame(context.newCalendarBuilder(), ParserContext.get().newCalendarBuilder());
+		assertNotNull(context.getScribeIndex());
+		assertSame(context.getScribeIndex(), ParserContext.get().getScribeIndex());
+		assertNotNull(context.getSerializer());
+		assertSame(context.getSerializer(), ParserContext.get().getSerializer());
+	}
+
+	public void testReset() {
+		ParserContext context = ParserContext.get();
+		Object serializer = context.getSerializer();
+
+		ParserContext.reset();
+		assertNotSame(context, ParserContext.get());
+		assertNotSame(serializer, ParserContext.get().getSerializer());
+	}
+
+	public void testThreadConfinement() throws InterruptedException {
+		final ParserContext context = ParserContext.get();
+		final Object[] otherContext = new Object[1];
+
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				otherContext[0] = ParserContext.get();
+			}
+		};
+		thread.start();
+		thread.join();
+
+		assertNotNull(otherContext[0]);
+		assertNotSame(context, otherContext[0]);
+	}
+
+	public void testReuseCalendarBuilder() throws IOException, InvalidResourceException {
+		Event event = parseCalendar("all-day-1day.ics");
+		assertEquals(868838400000L, event.getDtStartInMillis());
+
+		// builder must still be usable after an entity couldn't be parsed
+		try {
+			new Event("invalid.ics", null).parseEntity(new ByteArrayInputStream("/* invalid content */".getBytes()));
+			fail();
+		} catch(InvalidResourceException e) {
+		}
+
+		event = parseCalendar("all-day-10days.ics");
+		assertEquals(868838400000L, event.getDtStartInMillis());
+		assertEquals(868838400000L + 10*86400000, event.getDtEndInMillis());
+	}
+
+	public void testTimeZonesNotShared() throws IOException, InvalidResourceException {
+		// both calendars define the TZID "Custom Test Zone", with different offsets
+		Event event = parseCalendar("custom-tz-plus1.ics");
+		assertEquals(1420102800000L, event.getDtStartInMillis());	// 2015-01-01 09:00 UTC
+
+		// the VTIMEZONE follows the VEVENT, so a definition kept from the previous calendar would be used
+		event = parseCalendar("custom-tz-plus5.ics");
+		assertEquals(1420088400000L, event.getDtStartInMillis());	// 2015-01-01 05:00 UTC
+	}
+
+	public void testReuseScribeIndex() throws IOException {
+		Contact c1 = parseVCard("reference.vcf"),
+				c2 = parseVCard("reference.vcf");
+		assertNotNull(c1.getUid());
+		assertEquals(c1.getUid(), c2.getUid());
+		assertEquals(c1.getDisplayName(), c2.getDisplayName());
+	}
+
+
+	protected Event parseCalendar(String fileName) throws IOException, InvalidResourceException {
+		@Cleanup InputStream in = assetMgr.open(fileName, AssetManager.ACCESS_STREAMING);
+		Event e = new Event(fileName, null);
+		e.parseEntity(in);
+		return e;
+	}
+
+	protected Contact parseVCard(String fileName) throws IOException {
+		@Cleanup InputStream in = assetMgr.open(fileName, AssetManager.ACCESS_STREAMING);
+		Contact c = new Contact(fileName, null);
+		c.parseEntity(in);
+		return c;
+	}
+}
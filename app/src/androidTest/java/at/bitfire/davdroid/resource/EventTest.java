@@ -7,14 +7,23 @@
  ******************************************************************************/
 package at.bitfire.davdroid.resource;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParseException;
+
+import org.apache.commons.lang.StringUtils;
 
 import lombok.Cleanup;
 import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.ParameterList;
+import net.fortuna.ical4j.model.parameter.TzId;
+import net.fortuna.ical4j.model.property.DtStart;
 import android.content.res.AssetManager;
 import android.test.InstrumentationTestCase;
 import android.text.format.Time;
+import at.bitfire.davdroid.DigestUtils;
 import at.bitfire.davdroid.resource.Event;
 import at.bitfire.davdroid.resource.InvalidResourceException;
 
@@ -72,6 +81,34 @@ public class EventTest extends InstrumentationTestCase {
 		assertEquals(Time.TIMEZONE_UTC, eAllDay0Sec.getDtEndTzID());
 	}
 	
+	public void testValidateTimeZoneCached() throws ParseException {
+		final String tzID = "/freeassociation.sourceforge.net/Tzfile/Europe/Vienna";
+		DtStart dtStart = dtStartWithTzId(tzID);
+		Event.validateTimeZone(dtStart);
+		assertEquals("Europe/Vienna", dtStart.getTimeZone().getID());
+		
+		// guessed once, then taken from the cache
+		Event.ResolvedTimeZone resolved = Event.resolvedTimeZones.get(tzID);
+		assertNotNull(resolved);
+		assertSame(dtStart.getTimeZone(), resolved.timeZone);
+		DtStart dtStart2 = dtStartWithTzId(tzID);
+		Event.validateTimeZone(dtStart2);
+		assertSame(resolved, Event.resolvedTimeZones.get(tzID));
+		assertSame(resolved.timeZone, dtStart2.getTimeZone());
+	}
+	
+	public void testValidateTimeZoneCacheLimit() throws ParseException {
+		// many different (unknown) TZIDs don't let the cache grow without bounds
+		for (int i = 0; i < 2*Event.MAX_RESOLVED_TIMEZONES; i++)
+			Event.validateTimeZone(dtStartWithTzId("Unknown Zone " + i));
+		assertTrue(Event.resolvedTimeZones.size() <= Event.MAX_RESOLVED_TIMEZONES);
+		
+		// time zones which aren't cached anymore are still guessed
+		DtStart dtStart = dtStartWithTzId("/mozilla.org/20070129_1/America/New_York");
+		Event.validateTimeZone(dtStart);
+		assertEquals("America/New_York", dtStart.getTimeZone().getID());
+	}
+	
 	public void testTimezoneDefToTzId() {
 		// test valid definition
 		final String VTIMEZONE_SAMPLE =		// taken from RFC 4791, 5.2.2. CALDAV:calendar-timezone Property 
@@ -116,16 +153,103 @@ public class EventTest extends InstrumentationTestCase {
 		}
 	}
 
+	public void testTimezoneDefToTzIdCached() throws Exception {
+		String definition = vTimeZoneDefinition("Cached Zone");
+		assertEquals("Cached Zone", Event.TimezoneDefToTzId(definition));
+		
+		// parsed TZID is cached by SHA-1 digest of the definition
+		String digest = DigestUtils.sha1(definition.getBytes("UTF-8"));
+		assertEquals("Cached Zone", Event.timezoneDefTzIds.get(digest));
+		assertEquals("Cached Zone", Event.TimezoneDefToTzId(definition));
+		
+		// the cache is bounded: least recently used definitions are evicted
+		int maxSize = Event.timezoneDefTzIds.maxSize();
+		for (int i = 0; i < 2*maxSize; i++)
+			assertEquals("Zone " + i, Event.TimezoneDefToTzId(vTimeZoneDefinition("Zone " + i)));
+		assertEquals(maxSize, Event.timezoneDefTzIds.size());
+		assertNull(Event.timezoneDefTzIds.get(digest));
+		assertNull(Event.timezoneDefTzIds.get(DigestUtils.sha1(vTimeZoneDefinition("Zone 0").getBytes("UTF-8"))));
+		assertEquals("Zone " + (2*maxSize - 1), Event.timezoneDefTzIds.get(DigestUtils.sha1(vTimeZoneDefinition("Zone " + (2*maxSize - 1)).getBytes("UTF-8"))));
+		
+		// evicted definitions are parsed again
+		assertEquals("Cached Zone", Event.TimezoneDefToTzId(definition));
+	}
+	
+	public void testWriteEntityTimeZones() throws IOException, InvalidResourceException {
+		Event event = new Event("two-time-zones.ics", null);
+		event.setUid("two-time-zones@davdroid.bitfire.at");
+		event.setSummary("Event from Vienna to New York");
+		event.setDtStart(1381330800000L, "Europe/Vienna");
+		event.setDtEnd(1381363200000L, "America/New_York");
+		String entity = writeEntity(event);
+		
+		// VTIMEZONEs of start and end are inserted between the VEVENT and the end of the VCALENDAR
+		assertTrue(entity.startsWith("BEGIN:VCALENDAR\r\n"));
+		assertTrue(entity.endsWith("END:VTIMEZONE\r\nEND:VCALENDAR\r\n"));
+		assertEquals(2, StringUtils.countMatches(entity, "BEGIN:VTIMEZONE\r\n"));
+		int endOfEvent = entity.indexOf("END:VEVENT\r\n");
+		assertTrue(endOfEvent != -1);
+		assertTrue(entity.indexOf("TZID:Europe/Vienna\r\n") > endOfEvent);
+		assertTrue(entity.indexOf("TZID:America/New_York\r\n") > endOfEvent);
+		
+		// cached VTIMEZONEs are written again
+		assertEquals(2, StringUtils.countMatches(writeEntity(event), "BEGIN:VTIMEZONE\r\n"));
+		
+		// the entity can be parsed again
+		Event parsed = new Event("two-time-zones.ics", null);
+		parsed.parseEntity(new ByteArrayInputStream(entity.getBytes("UTF-8")));
+		assertEquals(event.getUid(), parsed.getUid());
+		assertEquals(1381330800000L, parsed.getDtStartInMillis());
+		assertEquals("Europe/Vienna", parsed.getDtStartTzID());
+		assertEquals(1381363200000L, parsed.getDtEndInMillis());
+		assertEquals("America/New_York", parsed.getDtEndTzID());
+		
+		// start and end in the same time zone: VTIMEZONE is only written once
+		event.setDtEnd(1381334400000L, "Europe/Vienna");
+		assertEquals(1, StringUtils.countMatches(writeEntity(event), "BEGIN:VTIMEZONE\r\n"));
+		
+		// all-day event: no VTIMEZONE
+		eAllDay1Day.setUid("all-day@davdroid.bitfire.at");
+		assertEquals(0, StringUtils.countMatches(writeEntity(eAllDay1Day), "BEGIN:VTIMEZONE"));
+	}
+
 	public void testUnfolding() throws IOException, InvalidResourceException {
 		Event e = parseCalendar("two-line-description-without-crlf.ics");
 		assertEquals("http://www.tgbornheim.de/index.php?sessionid=&page=&id=&sportcentergroup=&day=6", e.getDescription());
 	}
 	
 	
+	protected static String vTimeZoneDefinition(String tzID) {
+		return	"BEGIN:VCALENDAR\n" +
+				"PRODID:-//bitfire web engineering//DAVdroid Test//EN\n" +
+				"VERSION:2.0\n" +
+				"BEGIN:VTIMEZONE\n" +
+				"TZID:" + tzID + "\n" +
+				"BEGIN:STANDARD\n" +
+				"DTSTART:19700101T000000\n" +
+				"TZOFFSETFROM:+0100\n" +
+				"TZOFFSETTO:+0100\n" +
+				"END:STANDARD\n" +
+				"END:VTIMEZONE\n" +
+				"END:VCALENDAR";
+	}
+	
+	protected static DtStart dtStartWithTzId(String tzID) throws ParseException {
+		ParameterList params = new ParameterList();
+		params.add(new TzId(tzID));
+		return new DtStart(params, "20150101T100000");
+	}
+	
 	protected Event parseCalendar(String fname) throws IOException, InvalidResourceException {
 		@Cleanup InputStream in = assetMgr.open(fname, AssetManager.ACCESS_STREAMING);
 		Event e = new Event(fname, null);
 		e.parseEntity(in);
 		return e;
 	}
+	
+	protected String writeEntity(Event e) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		e.writeEntity(os);
+		return os.toString("UTF-8");
+	}
 }
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.util.List;
+
+import ezvcard.property.Email;
+import ezvcard.property.Organization;
+import ezvcard.property.Telephone;
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.InstrumentationTestCase;
+
+public class LocalAddressBookTest extends InstrumentationTestCase {
+	
+	private static final String accountName = "DAVdroid_Test";
+	// more than one populate query (MAX_POPULATE_CONTACTS = 200)
+	private static final int CONTACTS = 205;
+	
+	ContentProviderClient providerClient;
+	Account testAccount = new Account(accountName, "at.bitfire.davdroid.test");
+	LocalAddressBook addressBook;
+	
+	
+	// helpers
+	
+	private Uri syncAdapterURI(Uri uri) {
+		return uri.buildUpon()
+				.appendQueryParameter(RawContacts.ACCOUNT_NAME, testAccount.name)
+				.appendQueryParameter(RawContacts.ACCOUNT_TYPE, testAccount.type)
+				.appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").
+				build();
+	}
+	
+	private static Contact newContact(int i) {
+		Contact c = new Contact(i + ".vcf", "etag" + i);
+		c.setUid(i + "@davdroid.bitfire.at");
+		c.setDisplayName("Contact " + i);
+		c.setGivenName("Given " + i);
+		c.setFamilyName("Family " + i);
+		c.setNickName("Nick " + i);
+		c.setNote("Note " + i);
+		Organization org = new Organization();
+		org.addValue("Company " + i);
+		c.setOrganization(org);
+		c.getPhoneNumbers().add(new Telephone("+1 555 " + i));
+		c.getPhoneNumbers().add(new Telephone("+1 556 " + i));
+		c.getEmails().add(new Email(i + "@example.com"));
+		return c;
+	}
+	
+	/** inserts an additional data row (which must be ignored for single-valued kinds) */
+	private void insertDataRow(long rawContactID, String mimeType, String column, String value) throws Exception {
+		ContentValues values = new ContentValues();
+		values.put(Data.RAW_CONTACT_ID, rawContactID);
+		values.put(Data.MIMETYPE, mimeType);
+		values.put(column, value);
+		providerClient.insert(syncAdapterURI(Data.CONTENT_URI), values);
+	}
+	
+	private static void assertContactEquals(Contact expected, Contact actual) {
+		assertEquals(expected.getLocalID(), actual.getLocalID());
+		assertEquals(expected.getUid(), actual.getUid());
+		assertEquals(expected.getDisplayName(), actual.getDisplayName());
+		assertEquals(expected.getGivenName(), actual.getGivenName());
+		assertEquals(expected.getFamilyName(), actual.getFamilyName());
+		assertEquals(expected.getNickName(), actual.getNickName());
+		assertEquals(expected.getNote(), actual.getNote());
+		assertEquals(expected.getOrganization().getValues(), actual.getOrganization().getValues());
+		
+		assertEquals(expected.getPhoneNumbers().size(), actual.getPhoneNumbers().size());
+		for (int i = 0; i < expected.getPhoneNumbers().size(); i++)
+			assertEquals(expected.getPhoneNumbers().get(i).getText(), actual.getPhoneNumbers().get(i).getText());
+		assertEquals(expected.getEmails().size(), actual.getEmails().size());
+		for (int i = 0; i < expected.getEmails().size(); i++)
+			assertEquals(expected.getEmails().get(i).getValue(), actual.getEmails().get(i).getValue());
+	}
+	
+	
+	// initialization
+	
+	protected void setUp() throws Exception {
+		ContentResolver resolver = getInstrumentation().getContext().getContentResolver();
+		providerClient = resolver.acquireContentProviderClient(ContactsContract.AUTHORITY);
+		addressBook = new LocalAddressBook(testAccount, providerClient, null);
+	}
+	
+	protected void tearDown() throws Exception {
+		providerClient.delete(syncAdapterURI(RawContacts.CONTENT_URI),
+				RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?",
+				new String[] { testAccount.name, testAccount.type });
+	}
+	
+	
+	// tests
+	
+	public void testPopulateBatches() throws Exception {
+		for (int i = 0; i < CONTACTS; i++)
+			addressBook.add(newContact(i));
+		addressBook.commit();
+		
+		long[] ids = new long[CONTACTS];
+		for (int i = 0; i < CONTACTS; i++)
+			ids[i] = addressBook.findByRemoteName(i + ".vcf", false).getLocalID();
+		
+		// additional rows of single-valued kinds, around the boundary of the populate queries
+		int[] duplicates = { 0, 199, 200, CONTACTS - 1 };
+		for (int i : duplicates) {
+			insertDataRow(ids[i], StructuredName.CONTENT_ITEM_TYPE, StructuredName.DISPLAY_NAME, "Second name");
+			insertDataRow(ids[i], Note.CONTENT_ITEM_TYPE, Note.NOTE, "Second note");
+			insertDataRow(ids[i], Nickname.CONTENT_ITEM_TYPE, Nickname.NAME, "Second nick");
+		}
+		
+		// populating all contacts at once returns the same as populating them one by one
+		List<Contact> contacts = addressBook.findById(ids, true);
+		assertEquals(CONTACTS, contacts.size());
+		for (Contact c : contacts) {
+			int i = Integer.parseInt(c.getName().replace(".vcf", ""));
+			assertContactEquals(addressBook.findById(ids[i], true), c);
+			
+			// first row of single-valued kinds wins
+			assertEquals("Contact " + i, c.getDisplayName());
+			assertEquals("Note " + i, c.getNote());
+			assertEquals("Nick " + i, c.getNickName());
+			assertEquals("Company " + i, c.getOrganization().getValues().get(0));
+			assertEquals(2, c.getPhoneNumbers().size());
+		}
+	}
+	
+	public void testUpdateKeepsUnchangedDataRows() throws Exception {
+		// only the display name is set, the name parts are calculated by the content provider
+		Contact contact = new Contact("update.vcf", "etag1");
+		contact.setUid("update@davdroid.bitfire.at");
+		contact.setDisplayName("Display Name");
+		contact.getPhoneNumbers().add(new Telephone("+1 555 1234"));
+		contact.setNote("Note");
+		addressBook.add(contact);
+		addressBook.commit();
+		
+		// another version with the same data rows
+		Contact update = new Contact("update.vcf", "etag2");
+		update.setUid(contact.getUid());
+		update.setDisplayName(contact.getDisplayName());
+		update.getPhoneNumbers().add(new Telephone("+1 555 1234"));
+		update.setNote("Note");
+		update.setContentDigest("changed");
+		addressBook.updateByRemoteName(update);
+		
+		// only the raw contact is updated, no data rows
+		assertEquals(1, addressBook.pendingOperations.size());
+		addressBook.commit();
+		
+		// a changed row is still detected
+		update.setNote("Changed note");
+		update.setContentDigest("changed-again");
+		addressBook.updateByRemoteName(update);
+		assertEquals(2, addressBook.pendingOperations.size());
+		addressBook.commit();
+		assertEquals("Changed note", addressBook.findByRemoteName("update.vcf", true).getNote());
+	}
+	
+}
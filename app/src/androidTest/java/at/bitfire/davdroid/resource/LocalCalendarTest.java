@@ -7,12 +7,22 @@
  ******************************************************************************/
 package at.bitfire.davdroid.resource;
 
+import java.net.URI;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import lombok.Cleanup;
+import net.fortuna.ical4j.model.property.Attendee;
+
+import org.apache.commons.lang.StringUtils;
+
 import android.accounts.Account;
 import android.annotation.TargetApi;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -67,6 +77,45 @@ public class LocalCalendarTest extends InstrumentationTestCase {
 		providerClient.delete(syncAdapterURI(ContentUris.withAppendedId(Events.CONTENT_URI, id)), null, null);
 	}
 	
+	private Event newEvent(String name, String... attendeeEmails) throws Exception {
+		return newEvent(name, 1420102800000L, attendeeEmails);
+	}
+	
+	private Event newEvent(String name, long start, String... attendeeEmails) throws Exception {
+		Event event = new Event(name, null);
+		event.setUid(name + "@davdroid.bitfire.at");
+		event.setSummary(name);
+		event.setDtStart(start, "Europe/Vienna");
+		event.setDtEnd(start + 3600000, "Europe/Vienna");
+		for (String email : attendeeEmails)
+			event.addAttendee(new Attendee(new URI("mailto:" + email)));
+		return event;
+	}
+	
+	/** @return attendee email → attendee row ID */
+	private Map<String, Long> queryAttendees(long eventID) throws RemoteException {
+		Map<String, Long> attendees = new HashMap<String, Long>();
+		@Cleanup Cursor cursor = providerClient.query(syncAdapterURI(Attendees.CONTENT_URI),
+				new String[] { Attendees._ID, Attendees.ATTENDEE_EMAIL },
+				Attendees.EVENT_ID + "=?", new String[] { String.valueOf(eventID) }, null);
+		while (cursor.moveToNext())
+			attendees.put(cursor.getString(1), cursor.getLong(0));
+		return attendees;
+	}
+	
+	private ContentValues queryEvent(long id, String... columns) throws RemoteException {
+		@Cleanup Cursor cursor = providerClient.query(syncAdapterURI(ContentUris.withAppendedId(Events.CONTENT_URI, id)),
+				columns, null, null, null);
+		assertTrue(cursor.moveToNext());
+		return LocalCollection.rowToValues(cursor);
+	}
+	
+	private int countEvents() throws RemoteException {
+		@Cleanup Cursor cursor = providerClient.query(syncAdapterURI(Events.CONTENT_URI), new String[] { Events._ID },
+				Events.CALENDAR_ID + "=?", new String[] { String.valueOf(testCalendar.getId()) }, null);
+		return cursor.getCount();
+	}
+	
 	
 	// initialization
 	
@@ -150,5 +199,279 @@ public class LocalCalendarTest extends InstrumentationTestCase {
 			deleteEvent(id);
 		}
 	}
+	
+	public void testFindNewAssignsNames() throws Exception {
+		long[] ids = { insertNewEvent(), insertNewEvent(), insertNewEvent() };
+		try {
+			assertEquals(ids.length, testCalendar.findNew().length);
+			// generated UIDs and file names have been stored in one batch
+			assertTrue(testCalendar.pendingOperations.isEmpty());
+			
+			Set<String> names = new HashSet<String>();
+			for (long id : ids) {
+				ContentValues values = queryEvent(id, Events._SYNC_ID);
+				assertNotNull(values.getAsString(Events._SYNC_ID));
+				names.add(values.getAsString(Events._SYNC_ID));
+				assertNotNull(testCalendar.findById(id, true).getUid());
+			}
+			assertEquals(ids.length, names.size());
+		} finally {
+			for (long id : ids)
+				deleteEvent(id);
+		}
+	}
+	
+	public void testClearDirtyWithETag() throws Exception {
+		long id = insertNewEvent();
+		try {
+			Event event = testCalendar.findById(id, false);
+			testCalendar.clearDirty(event, "uploaded-etag");
+			
+			// one enqueued operation, nothing written before commit()
+			assertEquals(1, testCalendar.pendingOperations.size());
+			ContentValues values = queryEvent(id, Events.DIRTY, Events.SYNC_DATA1);
+			assertEquals(1, (int)values.getAsInteger(Events.DIRTY));
+			assertNull(values.getAsString(Events.SYNC_DATA1));
+			
+			// ETag and dirty flag are applied together
+			testCalendar.commit();
+			values = queryEvent(id, Events.DIRTY, Events.SYNC_DATA1);
+			assertEquals(0, (int)values.getAsInteger(Events.DIRTY));
+			assertEquals("uploaded-etag", values.getAsString(Events.SYNC_DATA1));
+			assertEquals(0, testCalendar.findNew().length);
+			assertEquals(0, testCalendar.findUpdated().length);
+		} finally {
+			deleteEvent(id);
+		}
+	}
+	
+	public void testUpdateKeepsUnchangedDataRows() throws Exception {
+		testCalendar.add(newEvent("update.ics", "unchanged@example.com", "removed@example.com"));
+		testCalendar.commit();
+		long localID = testCalendar.findByRemoteName("update.ics", false).getLocalID();
+		Map<String, Long> before = queryAttendees(localID);
+		assertEquals(2, before.size());
+		
+		Event changed = newEvent("update.ics", "unchanged@example.com", "added@example.com");
+		changed.setContentDigest("changed");
+		testCalendar.updateByRemoteName(changed);
+		testCalendar.commit();
+		
+		Map<String, Long> after = queryAttendees(localID);
+		assertEquals(2, after.size());
+		assertTrue(after.containsKey("added@example.com"));
+		assertFalse(after.containsKey("removed@example.com"));
+		// unchanged row hasn't been rewritten
+		assertEquals(before.get("unchanged@example.com"), after.get("unchanged@example.com"));
+	}
+	
+	public void testUpdateUnchangedDigest() throws Exception {
+		Event event = newEvent("digest.ics");
+		event.setETag("etag1");
+		event.setContentDigest("digest");
+		testCalendar.add(event);
+		testCalendar.commit();
+		
+		// same content digest: only the ETag is updated
+		Event remote = newEvent("digest.ics");
+		remote.setETag("etag2");
+		remote.setSummary("not stored");
+		remote.setContentDigest("digest");
+		testCalendar.loadRemoteNameIndex();
+		testCalendar.updateByRemoteName(remote);
+		assertEquals(1, testCalendar.pendingOperations.size());
+		testCalendar.commit();
+		
+		Event stored = testCalendar.findByRemoteName("digest.ics", true);
+		assertEquals("etag2", stored.getETag());
+		assertEquals("digest.ics", stored.getSummary());
+	}
+	
+	public void testUpdateUnchangedDigestDirty() throws Exception {
+		Event event = newEvent("digest-dirty.ics");
+		event.setETag("etag1");
+		event.setContentDigest("digest");
+		testCalendar.add(event);
+		testCalendar.commit();
+		
+		ContentValues values = new ContentValues(1);
+		values.put(Events.DIRTY, 1);
+		providerClient.update(syncAdapterURI(Events.CONTENT_URI), values,
+				Events._SYNC_ID + "=?", new String[] { "digest-dirty.ics" });
+		
+		// local entry is dirty: it's updated completely, although the content digest is the same
+		Event remote = newEvent("digest-dirty.ics");
+		remote.setETag("etag2");
+		remote.setSummary("remote summary");
+		remote.setContentDigest("digest");
+		RemoteNameIndex index = testCalendar.loadRemoteNameIndex();
+		assertTrue(index.get("digest-dirty.ics").isDirty());
+		testCalendar.updateByRemoteName(remote);
+		testCalendar.commit();
+		
+		Event stored = testCalendar.findByRemoteName("digest-dirty.ics", true);
+		assertEquals("etag2", stored.getETag());
+		assertEquals("remote summary", stored.getSummary());
+	}
+	
+	public void testDeleteAllExceptRemoteNames() throws Exception {
+		testCalendar.add(newEvent("keep.ics"));
+		testCalendar.add(newEvent("remove-1.ics"));
+		testCalendar.add(newEvent("remove-2.ics"));
+		testCalendar.commit();
+		assertEquals(3, countEvents());
+		
+		// the index must be loaded before, otherwise nothing could have been marked
+		try {
+			new LocalCalendar(testAccount, providerClient, testCalendar.getId(), null).deleteAllExceptRemoteNames();
+			fail();
+		} catch(IllegalStateException e) {
+		}
+		
+		// only "keep.ics" has been listed remotely
+		RemoteNameIndex index = testCalendar.loadRemoteNameIndex();
+		assertEquals(3, index.size());
+		assertNotNull(index.markRemotelyPresent("keep.ics"));
+		testCalendar.deleteAllExceptRemoteNames();
+		testCalendar.commit();
+		
+		assertEquals(1, countEvents());
+		assertNotNull(testCalendar.findByRemoteName("keep.ics", false));
+	}
+	
+	public void testSyncWindowKeepOutside() throws Exception {
+		addSyncWindowEvents();
+		testCalendar.setSyncWindow(new java.util.Date(System.currentTimeMillis() - 30*86400000L), true);
+		syncWindowListing();
+		
+		// events outside the window are kept, the one which has been removed inside the window is deleted
+		assertEquals(3, countEvents());
+		assertNotNull(testCalendar.findByRemoteName("outside.ics", false));
+		assertNotNull(testCalendar.findByRemoteName("outside-dirty.ics", false));
+		assertNotNull(testCalendar.findByRemoteName("inside.ics", false));
+	}
+	
+	public void testSyncWindowDontKeepOutside() throws Exception {
+		addSyncWindowEvents();
+		testCalendar.setSyncWindow(new java.util.Date(System.currentTimeMillis() - 30*86400000L), false);
+		syncWindowListing();
+		
+		// events outside the window are pruned, but not if they have local changes
+		assertEquals(2, countEvents());
+		assertNotNull(testCalendar.findByRemoteName("outside-dirty.ics", false));
+		assertNotNull(testCalendar.findByRemoteName("inside.ics", false));
+	}
+	
+	public void testSyncWindowNotListedOutside() throws Exception {
+		addSyncWindowEvents();
+		testCalendar.setSyncWindow(new java.util.Date(System.currentTimeMillis() - 30*86400000L), false);
+		
+		// events outside the window haven't been listed, but they must not be deleted as "remotely removed"
+		testCalendar.loadRemoteNameIndex().markRemotelyPresent("inside.ics");
+		testCalendar.deleteAllExceptRemoteNames();
+		testCalendar.commit();
+		assertEquals(3, countEvents());
+	}
+	
+	public void testSyncWindowEmpty() throws Exception {
+		testCalendar.add(newEvent("outside.ics"));
+		testCalendar.commit();
+		testCalendar.setSyncWindow(new java.util.Date(System.currentTimeMillis() - 30*86400000L), true);
+		
+		// nothing listed (no events in the window): nothing is deleted
+		testCalendar.loadRemoteNameIndex();
+		testCalendar.deleteAllExceptRemoteNames();
+		testCalendar.deleteExpired();
+		testCalendar.commit();
+		assertEquals(1, countEvents());
+	}
+	
+	/** adds two events before the sync window (one of them dirty) and two events in the sync window */
+	private void addSyncWindowEvents() throws Exception {
+		long now = System.currentTimeMillis();
+		testCalendar.add(newEvent("outside.ics"));
+		testCalendar.add(newEvent("outside-dirty.ics"));
+		testCalendar.add(newEvent("inside.ics", now + 86400000L));
+		testCalendar.add(newEvent("inside-removed.ics", now + 86400000L));
+		testCalendar.commit();
+		
+		ContentValues values = new ContentValues(1);
+		values.put(Events.DIRTY, 1);
+		providerClient.update(syncAdapterURI(Events.CONTENT_URI), values,
+				Events._SYNC_ID + "=?", new String[] { "outside-dirty.ics" });
+		assertEquals(4, countEvents());
+	}
+	
+	/** simulates the listing of the sync window ("inside-removed.ics" has been removed on the server) */
+	private void syncWindowListing() throws Exception {
+		testCalendar.loadRemoteNameIndex().markRemotelyPresent("inside.ics");
+		testCalendar.deleteAllExceptRemoteNames();
+		testCalendar.deleteExpired();
+		testCalendar.commit();
+	}
+	
+	public void testSplitBatch() throws Exception {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
+			return;		// batches can't be split without TransactionTooLargeException
+		
+		// six events of about 200 KB each don't fit into one binder transaction (1 MB),
+		// so the batch is split and the attendees' back references have to be rebuilt
+		addSplitEvents(6);
+		testCalendar.commit();
+		assertOwnAttendees(6);
+	}
+	
+	public void testSplitBatchFailure() throws Exception {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
+			return;
+		
+		// the second part of the split batch fails (update of a non-existing event)
+		addSplitEvents(6);
+		testCalendar.pendingOperations.add(ContentProviderOperation
+				.newUpdate(syncAdapterURI(ContentUris.withAppendedId(Events.CONTENT_URI, Long.MAX_VALUE)))
+				.withValue(Events.TITLE, "doesn't exist")
+				.withExpectedCount(1)
+				.withYieldAllowed(true)
+				.build());
+		try {
+			testCalendar.commit();
+			fail();
+		} catch(LocalStorageException e) {
+		}
+		
+		// the first part has been applied and removed from the queue, the rest is still enqueued
+		int applied = countEvents();
+		assertTrue(applied > 0 && applied < 6);
+		assertEquals(2*(6 - applied) + 1, testCalendar.pendingOperations.size());
+		
+		// without the failing operation, the rest can be committed; back references must refer to the new positions
+		testCalendar.pendingOperations.remove(testCalendar.pendingOperations.size() - 1);
+		testCalendar.commit();
+		assertOwnAttendees(6);
+	}
+	
+	/** enqueues n events of about 200 KB each, with one attendee each */
+	private void addSplitEvents(int n) throws Exception {
+		String description = StringUtils.repeat("x", 100*1024);
+		for (int i = 0; i < n; i++) {
+			Event event = newEvent("split-" + i + ".ics", "attendee-" + i + "@example.com");
+			event.setDescription(description);
+			testCalendar.add(event);
+		}
+	}
+	
+	/** asserts that there are n events and every event has exactly its own attendee */
+	private void assertOwnAttendees(int n) throws RemoteException {
+		@Cleanup Cursor cursor = providerClient.query(syncAdapterURI(Events.CONTENT_URI),
+				new String[] { Events._ID, Events._SYNC_ID },
+				Events.CALENDAR_ID + "=?", new String[] { String.valueOf(testCalendar.getId()) }, null);
+		assertEquals(n, cursor.getCount());
+		while (cursor.moveToNext()) {
+			String i = StringUtils.substringBetween(cursor.getString(1), "split-", ".ics");
+			Map<String, Long> attendees = queryAttendees(cursor.getLong(0));
+			assertEquals(1, attendees.size());
+			assertTrue(attendees.containsKey("attendee-" + i + "@example.com"));
+		}
+	}
 
 }
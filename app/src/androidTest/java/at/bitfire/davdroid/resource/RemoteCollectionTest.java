@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import lombok.Cleanup;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.ByteArrayBuffer;
+import org.apache.http.util.EntityUtilsHC4;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.ParserContext;
+import at.bitfire.davdroid.TestConstants;
+import at.bitfire.davdroid.webdav.DavHttpClient;
+
+public class RemoteCollectionTest extends InstrumentationTestCase {
+	CloseableHttpClient httpClient;
+	CalDavCalendar calendar;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// iCal4j ResourceLoader needs the class loader of the app
+		Thread.currentThread().setContextClassLoader(getInstrumentation().getContext().getClassLoader());
+		
+		httpClient = DavHttpClient.create();
+		calendar = new CalDavCalendar(httpClient, TestConstants.roboHydra.resolve("/dav/calendar-multiget/").toString(), "", "", false);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		httpClient.close();
+	}
+	
+	
+	public void testMultiGetParsedInOrder() throws Exception {
+		// more entities than can be pending in the parse pool
+		Resource[] resources = new Resource[40];
+		for (int i = 0; i < resources.length; i++)
+			resources[i] = new Event(i + ".ics", null);
+		
+		final List<Resource> fetched = new LinkedList<Resource>();
+		RemoteCollection.MultiGetStatistics statistics = new RemoteCollection.MultiGetStatistics();
+		calendar.multiGet(resources, statistics, new RemoteCollection.ResourceCallback<RuntimeException>() {
+			@Override
+			public void onResource(Resource resource) {
+				fetched.add(resource);
+			}
+		});
+		assertTrue(statistics.getContentLength() > 0);
+		
+		// delivered in response order, only the unparseable entity (7.ics) is skipped
+		assertEquals(resources.length - 1, fetched.size());
+		int i = 0;
+		for (Resource resource : fetched) {
+			if (i == 7)
+				i++;
+			assertEquals(i + ".ics", resource.getName());
+			assertEquals("Event " + i, ((Event)resource).getSummary());
+			i++;
+		}
+	}
+	
+	public void testSpooledEntityMatchesToEntity() throws Exception {
+		Event event = parseEvent("vienna-evolution.ics");
+		Contact contact = parseContact("reference.vcf");
+		
+		HttpEntity entity = RemoteCollection.spoolEntity(event);
+		assertTrue(entity.isRepeatable());
+		assertEquals(event.toEntity().size(), entity.getContentLength());
+		assertTrue(Arrays.equals(event.toEntity().toByteArray(), EntityUtilsHC4.toByteArray(entity)));
+		
+		// the buffer is cleared before the next resource is spooled
+		entity = RemoteCollection.spoolEntity(contact);
+		assertTrue(Arrays.equals(contact.toEntity().toByteArray(), EntityUtilsHC4.toByteArray(entity)));
+	}
+	
+	public void testSpoolTrimmed() throws Exception {
+		ParserContext.reset();
+		
+		// small requests keep the buffer of the thread
+		Event event = parseEvent("vienna-evolution.ics");
+		RemoteCollection.spoolEntity(event);
+		ByteArrayBuffer buffer = ParserContext.get().getRequestBuffer();
+		ParserContext.get().trimRequestBuffer();
+		assertSame(buffer, ParserContext.get().getRequestBuffer());
+		
+		// a large request lets the buffer grow, so it's discarded afterwards
+		char[] description = new char[100*1024];
+		Arrays.fill(description, 'x');
+		event.setDescription(new String(description));
+		HttpEntity entity = RemoteCollection.spoolEntity(event);
+		assertTrue(entity.getContentLength() > 100*1024);
+		assertTrue(Arrays.equals(event.toEntity().toByteArray(), EntityUtilsHC4.toByteArray(entity)));
+		
+		buffer = ParserContext.get().getRequestBuffer();
+		ParserContext.get().trimRequestBuffer();
+		ByteArrayBuffer newBuffer = ParserContext.get().getRequestBuffer();
+		assertNotSame(buffer, newBuffer);
+		assertTrue(newBuffer.capacity() < buffer.capacity());
+	}
+	
+	
+	protected Event parseEvent(String fileName) throws Exception {
+		@Cleanup InputStream in = getInstrumentation().getContext().getResources().getAssets().open(fileName, AssetManager.ACCESS_STREAMING);
+		Event event = new Event(fileName, null);
+		event.parseEntity(in);
+		return event;
+	}
+	
+	protected Contact parseContact(String fileName) throws Exception {
+		@Cleanup InputStream in = getInstrumentation().getContext().getResources().getAssets().open(fileName, AssetManager.ACCESS_STREAMING);
+		Contact contact = new Contact(fileName, null);
+		contact.parseEntity(in);
+		return contact;
+	}
+	
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class RemoteNameIndexTest extends TestCase {
+	RemoteNameIndex index;
+
+	public void setUp() {
+		index = new RemoteNameIndex(3);
+		index.put("1.vcf", 1, "etag1", "digest1", false);
+		index.put("2.vcf", 2, "etag2", null, true);
+		index.put("3.vcf", 3, null, null, false);
+	}
+
+
+	public void testGet() {
+		assertEquals(3, index.size());
+
+		RemoteNameIndex.Entry entry = index.get("1.vcf");
+		assertEquals(1, entry.getLocalID());
+		assertEquals("etag1", entry.getETag());
+		assertEquals("digest1", entry.getContentDigest());
+		assertFalse(entry.isDirty());
+		assertTrue(index.get("2.vcf").isDirty());
+
+		assertNull(index.get("3.vcf").getETag());
+		assertNull(index.get("unknown.vcf"));
+
+		// get() doesn't mark entries
+		assertFalse(entry.isRemotelyPresent());
+	}
+
+	public void testMarkRemotelyPresent() {
+		// nothing is marked before the remote listing has been processed
+		for (Map.Entry<String, RemoteNameIndex.Entry> entry : index.entrySet())
+			assertFalse(entry.getValue().isRemotelyPresent());
+
+		RemoteNameIndex.Entry entry = index.markRemotelyPresent("2.vcf");
+		assertSame(index.get("2.vcf"), entry);
+		assertTrue(entry.isRemotelyPresent());
+
+		// marking again doesn't unmark
+		assertTrue(index.markRemotelyPresent("2.vcf").isRemotelyPresent());
+
+		// remote names which aren't in the index are not added
+		assertNull(index.markRemotelyPresent("new.vcf"));
+		assertEquals(3, index.size());
+
+		// the unmarked entries are the ones which have been removed on the server
+		Set<Long> unmarked = new HashSet<Long>();
+		for (Map.Entry<String, RemoteNameIndex.Entry> e : index.entrySet())
+			if (!e.getValue().isRemotelyPresent())
+				unmarked.add(e.getValue().getLocalID());
+		assertEquals(2, unmarked.size());
+		assertTrue(unmarked.contains(1L));
+		assertTrue(unmarked.contains(3L));
+	}
+
+}
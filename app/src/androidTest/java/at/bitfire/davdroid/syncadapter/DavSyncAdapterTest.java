@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import android.content.SyncResult;
+import at.bitfire.davdroid.webdav.DavHttpClient;
+
+public class DavSyncAdapterTest extends TestCase {
+	
+	public void testConnectionLimits() {
+		// every parallel sync can run its listing and the default number of multi-gets or uploads
+		assertTrue(DavHttpClient.MAX_CONNECTIONS_PER_ROUTE >= DavSyncAdapter.MAX_PARALLEL_SYNCS * (1 + SyncManager.DEFAULT_MULTIGET_IN_FLIGHT));
+		assertTrue(DavHttpClient.MAX_CONNECTIONS_PER_ROUTE >= DavSyncAdapter.MAX_PARALLEL_SYNCS * SyncManager.DEFAULT_UPLOADS_IN_FLIGHT);
+		assertTrue(DavHttpClient.MAX_CONNECTIONS_TOTAL >= DavHttpClient.MAX_CONNECTIONS_PER_ROUTE);
+	}
+	
+	public void testMergeParallelSyncResults() throws Exception {
+		final int collections = 30, merges = 100;
+		final SyncResult syncResult = new SyncResult();
+		
+		List<Callable<Void>> syncs = new LinkedList<Callable<Void>>();
+		for (int i = 0; i < collections; i++) {
+			final boolean failed = (i == collections - 1);
+			syncs.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int j = 0; j < merges; j++) {
+						SyncResult collectionResult = new SyncResult();
+						collectionResult.stats.numInserts = 1;
+						collectionResult.stats.numUpdates = 2;
+						collectionResult.stats.numEntries = 3;
+						if (failed && j == 0) {
+							collectionResult.stats.numIoExceptions = 1;
+							collectionResult.databaseError = true;
+						}
+						DavSyncAdapter.mergeSyncResult(syncResult, collectionResult);
+					}
+					return null;
+				}
+			});
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(DavSyncAdapter.MAX_PARALLEL_SYNCS);
+		try {
+			for (Future<Void> future : executor.invokeAll(syncs))
+				future.get();
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		// no lost updates, and errors of one collection are kept
+		assertEquals(collections*merges, syncResult.stats.numInserts);
+		assertEquals(2*collections*merges, syncResult.stats.numUpdates);
+		assertEquals(3*collections*merges, syncResult.stats.numEntries);
+		assertEquals(1, syncResult.stats.numIoExceptions);
+		assertTrue(syncResult.databaseError);
+		assertFalse(syncResult.tooManyDeletions);
+	}
+	
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import junit.framework.TestCase;
+
+public class MultiGetBatchSizeTest extends TestCase {
+
+	public void testBounds() {
+		assertEquals(MultiGetBatchSize.MIN, new MultiGetBatchSize(0).get());
+		assertEquals(MultiGetBatchSize.MAX, new MultiGetBatchSize(100000).get());
+		assertEquals(40, new MultiGetBatchSize(40).get());
+	}
+
+	public void testGrow() {
+		MultiGetBatchSize size = new MultiGetBatchSize(40);
+
+		// fast and small, but not full-size: no information about larger batches
+		size.succeeded(39, 100, 1024);
+		assertEquals(40, size.get());
+
+		// fast, small and full-size
+		size.succeeded(40, 100, 1024);
+		assertEquals(60, size.get());
+
+		// just at the thresholds: neither fast nor small
+		size.succeeded(60, MultiGetBatchSize.FAST_RESPONSE, 1024);
+		assertEquals(60, size.get());
+		size.succeeded(60, 100, MultiGetBatchSize.SMALL_RESPONSE);
+		assertEquals(60, size.get());
+
+		// doesn't grow beyond MAX
+		for (int i = 0; i < 20; i++)
+			size.succeeded(size.get(), 100, 1024);
+		assertEquals(MultiGetBatchSize.MAX, size.get());
+	}
+
+	public void testShrink() {
+		MultiGetBatchSize size = new MultiGetBatchSize(40);
+
+		// just at the thresholds: neither slow nor large
+		size.succeeded(40, MultiGetBatchSize.SLOW_RESPONSE, 1024);
+		assertEquals(40, size.get());
+		size.succeeded(40, 100, MultiGetBatchSize.LARGE_RESPONSE);
+		assertEquals(40, size.get());
+
+		// slow (even if small)
+		size.succeeded(40, MultiGetBatchSize.SLOW_RESPONSE + 1, 1024);
+		assertEquals(20, size.get());
+
+		// large (even if fast)
+		size.succeeded(5, 100, MultiGetBatchSize.LARGE_RESPONSE + 1);
+		assertEquals(10, size.get());
+
+		// doesn't shrink below MIN
+		size.succeeded(10, MultiGetBatchSize.SLOW_RESPONSE + 1, 1024);
+		size.succeeded(5, MultiGetBatchSize.SLOW_RESPONSE + 1, 1024);
+		assertEquals(MultiGetBatchSize.MIN, size.get());
+	}
+
+	public void testTimedOut() {
+		MultiGetBatchSize size = new MultiGetBatchSize(40);
+
+		// shrinks relative to the batch which has timed out, if it was smaller
+		size.timedOut(20);
+		assertEquals(10, size.get());
+
+		size.timedOut(40);
+		assertEquals(MultiGetBatchSize.MIN, size.get());
+	}
+
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import at.bitfire.davdroid.resource.CalDavCalendar;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.Resource;
+
+public class MultiGetPipelineTest extends TestCase {
+
+	/** returns the requested resources (after a short delay) and counts the REPORTs */
+	static class TestCalendar extends CalDavCalendar {
+		final AtomicInteger requests = new AtomicInteger();
+
+		TestCalendar() throws URISyntaxException {
+			super(null, "https://example.com/dav/calendar/", "user", "password", false);
+		}
+
+		@Override
+		public Resource[] multiGet(Resource[] resources, RemoteCollection.MultiGetStatistics statistics) {
+			requests.incrementAndGet();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+			}
+			return resources;
+		}
+	}
+
+
+	public void testBounded() throws Exception {
+		TestCalendar remote = new TestCalendar();
+		MultiGetPipeline pipeline = new MultiGetPipeline(remote, new MultiGetBatchSize(MultiGetBatchSize.MIN), 2);
+		try {
+			for (int i = 0; i < 10*MultiGetBatchSize.MIN; i++)
+				pipeline.add(new Event(i + ".ics", null));
+			Thread.sleep(100);
+			// batches which haven't been taken yet block further requests
+			assertEquals(2, remote.requests.get());
+
+			int n = 0, batches = 0;
+			Resource[] batch;
+			while ((batch = pipeline.next()) != null) {
+				batches++;
+				assertTrue(remote.requests.get() - batches <= 2);
+				for (Resource resource : batch)
+					assertEquals((n++) + ".ics", resource.getName());
+			}
+			assertEquals(10*MultiGetBatchSize.MIN, n);
+			assertEquals(10, batches);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	public void testNextRequestsMore() throws Exception {
+		TestCalendar remote = new TestCalendar();
+		MultiGetPipeline pipeline = new MultiGetPipeline(remote, new MultiGetBatchSize(MultiGetBatchSize.MIN), 1);
+		try {
+			for (int i = 0; i < 3*MultiGetBatchSize.MIN + 1; i++)
+				pipeline.add(new Event(i + ".ics", null));
+			Thread.sleep(100);
+			assertEquals(1, remote.requests.get());
+
+			// taking a batch requests the next one, before the taken batch is processed
+			assertEquals(MultiGetBatchSize.MIN, pipeline.next().length);
+			Thread.sleep(100);
+			assertEquals(2, remote.requests.get());
+
+			// remaining resources (including the incomplete batch) are requested by next()
+			int batches = 1;
+			while (pipeline.next() != null)
+				batches++;
+			assertEquals(4, batches);
+			assertEquals(4, remote.requests.get());
+		} finally {
+			pipeline.close();
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.LinkedList;
+import java.util.List;
+
+import lombok.Cleanup;
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.resource.CalDavCalendar;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.LocalCalendar;
+import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.Resource;
+
+public class SyncManagerTest extends InstrumentationTestCase {
+	private static final String calendarName = "DAVdroid_SyncTest";
+	private static final int REMOTE_EVENTS = 12;
+	
+	ContentProviderClient providerClient;
+	Account testAccount = new Account(calendarName, CalendarContract.ACCOUNT_TYPE_LOCAL);
+	LocalCalendar testCalendar;
+	
+	
+	/** lists REMOTE_EVENTS events (and fails afterwards, if requested) and returns them by multi-get */
+	static class TestCalendar extends CalDavCalendar {
+		final boolean failListing;
+		boolean cTagFetched, listed;
+		final List<String> added = new LinkedList<String>();
+		
+		TestCalendar(boolean failListing) throws URISyntaxException {
+			super(null, "https://example.com/dav/calendar/", "user", "password", false);
+			this.failListing = failListing;
+		}
+		
+		@Override
+		public String getCTag() {
+			cTagFetched = true;
+			return "remote-ctag";
+		}
+		
+		@Override
+		public <E extends Exception> void getMemberETags(RemoteCollection.ResourceCallback<E> callback) throws IOException, E {
+			listed = true;
+			for (int i = 0; i < REMOTE_EVENTS; i++)
+				callback.onResource(new Event(i + ".ics", "etag" + i));
+			if (failListing) {
+				// give the multi-gets time to complete before the listing fails
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				throw new IOException("Listing interrupted");
+			}
+		}
+		
+		@Override
+		public Resource[] multiGet(Resource[] resources, RemoteCollection.MultiGetStatistics statistics) {
+			Resource[] events = new Resource[resources.length];
+			for (int i = 0; i < resources.length; i++)
+				events[i] = newEvent(resources[i].getName(), resources[i].getETag());
+			return events;
+		}
+		
+		@Override
+		public String add(Resource resource) {
+			synchronized(added) {
+				added.add(resource.getName());
+			}
+			return "etag-" + resource.getName();
+		}
+	}
+	
+	
+	// helpers
+	
+	private Uri syncAdapterURI(Uri uri) {
+		return uri.buildUpon()
+				.appendQueryParameter(Calendars.ACCOUNT_NAME, calendarName)
+				.appendQueryParameter(Calendars.ACCOUNT_TYPE, CalendarContract.ACCOUNT_TYPE_LOCAL)
+				.appendQueryParameter(CalendarContract.CALLER_IS_SYNCADAPTER, "true").
+				build();
+	}
+	
+	private static Event newEvent(String name, String ETag) {
+		Event event = new Event(name, ETag);
+		event.setUid(name + "@davdroid.bitfire.at");
+		event.setSummary(name);
+		event.setDtStart(1420102800000L, "Europe/Vienna");
+		event.setDtEnd(1420102800000L + 3600000, "Europe/Vienna");
+		return event;
+	}
+	
+	private int countEvents() throws Exception {
+		@Cleanup Cursor cursor = providerClient.query(syncAdapterURI(Events.CONTENT_URI), new String[] { Events._ID },
+				Events.CALENDAR_ID + "=?", new String[] { String.valueOf(testCalendar.getId()) }, null);
+		return cursor.getCount();
+	}
+	
+	private SyncManager newSyncManager(boolean failListing) throws URISyntaxException {
+		return newSyncManager(new TestCalendar(failListing));
+	}
+	
+	private SyncManager newSyncManager(TestCalendar remote) {
+		SyncManager syncManager = new SyncManager(testCalendar, remote);
+		syncManager.setMultiGetBatchSize(MultiGetBatchSize.MIN);
+		return syncManager;
+	}
+	
+	
+	// initialization
+	
+	protected void setUp() throws Exception {
+		ContentResolver resolver = getInstrumentation().getContext().getContentResolver();
+		providerClient = resolver.acquireContentProviderClient(CalendarContract.AUTHORITY);
+		
+		ContentValues values = new ContentValues();
+		values.put(Calendars.ACCOUNT_NAME, testAccount.name);
+		values.put(Calendars.ACCOUNT_TYPE, testAccount.type);
+		values.put(Calendars.NAME, calendarName);
+		values.put(Calendars.CALENDAR_DISPLAY_NAME, calendarName);
+		values.put(Calendars.CALENDAR_ACCESS_LEVEL, Calendars.CAL_ACCESS_OWNER);
+		values.put(Calendars.SYNC_EVENTS, 0);
+		values.put(Calendars.VISIBLE, 1);
+		long id = ContentUris.parseId(providerClient.insert(syncAdapterURI(Calendars.CONTENT_URI), values));
+		
+		testCalendar = new LocalCalendar(testAccount, providerClient, id, null);
+		
+		// local event which isn't present remotely
+		testCalendar.add(newEvent("local.ics", "local-etag"));
+		testCalendar.commit();
+	}
+	
+	protected void tearDown() throws Exception {
+		providerClient.delete(ContentUris.withAppendedId(syncAdapterURI(Calendars.CONTENT_URI), testCalendar.getId()), null, null);
+	}
+	
+	
+	// tests
+	
+	public void testSynchronize() throws Exception {
+		newSyncManager(false).synchronize(true, new SyncResult());
+		
+		assertEquals(REMOTE_EVENTS, countEvents());
+		assertEquals("remote-ctag", testCalendar.getCTag());
+	}
+	
+	public void testFailedListingStoresNothing() throws Exception {
+		SyncResult syncResult = new SyncResult();
+		try {
+			newSyncManager(true).synchronize(true, syncResult);
+			fail();
+		} catch(IOException e) {
+			assertEquals("Listing interrupted", e.getMessage());
+		}
+		
+		// resources which have been fetched during the failed listing haven't been stored,
+		// and nothing has been deleted
+		assertEquals(0, syncResult.stats.numInserts);
+		assertEquals(1, countEvents());
+		assertNull(testCalendar.getCTag());
+	}
+	
+	public void testUploadOnly() throws Exception {
+		// locally created event
+		ContentValues values = new ContentValues();
+		values.put(Events.CALENDAR_ID, testCalendar.getId());
+		values.put(Events.TITLE, "New Event");
+		values.put(Events.DTSTART, 1420102800000L);
+		values.put(Events.DTEND, 1420102800000L + 3600000);
+		values.put(Events.EVENT_TIMEZONE, "UTC");
+		values.put(Events.DIRTY, 1);
+		long id = ContentUris.parseId(providerClient.insert(syncAdapterURI(Events.CONTENT_URI), values));
+		
+		TestCalendar remote = new TestCalendar(false);
+		SyncResult syncResult = new SyncResult();
+		newSyncManager(remote).upload(syncResult);
+		
+		// only the local change has been pushed, without CTag request or listing
+		assertEquals(1, remote.added.size());
+		assertFalse(remote.cTagFetched);
+		assertFalse(remote.listed);
+		assertEquals(1, syncResult.stats.numEntries);
+		
+		@Cleanup Cursor cursor = providerClient.query(syncAdapterURI(ContentUris.withAppendedId(Events.CONTENT_URI, id)),
+				new String[] { Events._SYNC_ID, Events.DIRTY, Events.SYNC_DATA1 }, null, null, null);
+		assertTrue(cursor.moveToNext());
+		assertEquals(remote.added.get(0), cursor.getString(0));
+		assertEquals(0, cursor.getInt(1));
+		assertEquals("etag-" + remote.added.get(0), cursor.getString(2));
+		
+		// the remote collection hasn't been synchronized
+		assertEquals(2, countEvents());
+		assertNull(testCalendar.getCTag());
+	}
+	
+}
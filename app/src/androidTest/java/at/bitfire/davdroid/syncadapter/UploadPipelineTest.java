@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import at.bitfire.davdroid.resource.Event;
+
+public class UploadPipelineTest extends TestCase {
+
+	/** uploads "fail.ics" with an IOException (after a short delay), all other resources successfully (after a longer delay) */
+	static class TestOperation implements UploadPipeline.Operation {
+		final Set<String> executed = new HashSet<String>();
+
+		@Override
+		public boolean execute(UploadPipeline.Upload upload) throws IOException {
+			String name = upload.getResource().getName();
+			synchronized(executed) {
+				executed.add(name);
+			}
+			try {
+				Thread.sleep(name.equals("fail.ics") ? 10 : 200);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (name.equals("fail.ics"))
+				throw new IOException("Upload failed");
+			upload.setETag("etag-" + name);
+			return true;
+		}
+	}
+
+
+	public void testInOrder() throws Exception {
+		List<UploadPipeline.Upload> completed = new LinkedList<UploadPipeline.Upload>();
+		UploadPipeline pipeline = new UploadPipeline(new TestOperation(), 3);
+		try {
+			for (int i = 0; i < 10; i++)
+				completed.addAll(pipeline.submit(new Event(i + ".ics", null)));
+			completed.addAll(pipeline.finish());
+		} finally {
+			pipeline.close();
+		}
+		assertFalse(pipeline.hasFailed());
+		pipeline.throwFailure();
+
+		assertEquals(10, completed.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i + ".ics", completed.get(i).getResource().getName());
+			assertEquals("etag-" + i + ".ics", completed.get(i).getETag());
+		}
+	}
+
+	public void testSuccessfulUploadsBeforeFailure() throws Exception {
+		TestOperation operation = new TestOperation();
+		List<UploadPipeline.Upload> completed = new LinkedList<UploadPipeline.Upload>();
+		UploadPipeline pipeline = new UploadPipeline(operation, 3);
+		try {
+			// "fail.ics" fails while "0.ics" and "1.ics" are still running
+			completed.addAll(pipeline.submit(new Event("0.ics", null)));
+			completed.addAll(pipeline.submit(new Event("fail.ics", null)));
+			completed.addAll(pipeline.submit(new Event("1.ics", null)));
+			Thread.sleep(50);
+			for (int i = 2; i < 10 && !pipeline.hasFailed(); i++)
+				completed.addAll(pipeline.submit(new Event(i + ".ics", null)));
+			completed.addAll(pipeline.finish());
+		} finally {
+			pipeline.close();
+		}
+
+		// uploads which have already been started are completed and returned, no further uploads are started
+		assertTrue(pipeline.hasFailed());
+		assertEquals(2, completed.size());
+		assertEquals("0.ics", completed.get(0).getResource().getName());
+		assertEquals("etag-0.ics", completed.get(0).getETag());
+		assertEquals("1.ics", completed.get(1).getResource().getName());
+		assertEquals("etag-1.ics", completed.get(1).getETag());
+		assertEquals(3, operation.executed.size());
+
+		try {
+			pipeline.throwFailure();
+			fail();
+		} catch(IOException e) {
+			assertEquals("Upload failed", e.getMessage());
+		}
+	}
+
+	public void testFailureWithoutThreads() throws Exception {
+		List<UploadPipeline.Upload> completed = new LinkedList<UploadPipeline.Upload>();
+		UploadPipeline pipeline = new UploadPipeline(new TestOperation(), 1);
+		completed.addAll(pipeline.submit(new Event("0.ics", null)));
+		completed.addAll(pipeline.submit(new Event("fail.ics", null)));
+		completed.addAll(pipeline.submit(new Event("1.ics", null)));
+		completed.addAll(pipeline.finish());
+		pipeline.close();
+
+		assertEquals(1, completed.size());
+		assertTrue(pipeline.hasFailed());
+		try {
+			pipeline.throwFailure();
+			fail();
+		} catch(IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.http.util.ByteArrayBuffer;
+import org.apache.http.util.EncodingUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+public class DavMultigetTest extends TestCase {
+	final static String HREFS[] = {
+		"1.vcf",
+		"a&b<c>\"d'e.vcf",
+		"Kontakt-\u00e4\u00f6\u00fc-\u20ac.vcf"
+	};
+
+	public void testEscaping() {
+		ByteArrayBuffer buffer = new ByteArrayBuffer(16);
+		DavMultiget.writeRequest(DavMultiget.Type.ADDRESS_BOOK, HREFS, buffer);
+		String body = EncodingUtils.getAsciiString(buffer.buffer(), 0, buffer.length());
+
+		assertTrue(body.contains("<href>1.vcf</href>"));
+		assertTrue(body.contains("<href>a&amp;b&lt;c&gt;&quot;d&apos;e.vcf</href>"));
+		// non-ASCII characters are written as character references
+		assertTrue(body.contains("<href>Kontakt-&#228;&#246;&#252;-&#8364;.vcf</href>"));
+		for (int i = 0; i < buffer.length(); i++)
+			assertTrue(buffer.byteAt(i) > 0);
+	}
+
+	public void testWellFormed() throws Exception {
+		for (DavMultiget.Type type : DavMultiget.Type.values()) {
+			ByteArrayBuffer buffer = new ByteArrayBuffer(16);
+			DavMultiget.writeRequest(type, HREFS, buffer);
+
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(buffer.buffer(), 0, buffer.length()));
+
+			String expectedRoot = (type == DavMultiget.Type.ADDRESS_BOOK) ? "addressbook-multiget" : "calendar-multiget",
+				expectedNamespace = (type == DavMultiget.Type.ADDRESS_BOOK) ? "urn:ietf:params:xml:ns:carddav" : "urn:ietf:params:xml:ns:caldav";
+			assertEquals(expectedRoot, doc.getDocumentElement().getLocalName());
+			assertEquals(expectedNamespace, doc.getDocumentElement().getNamespaceURI());
+
+			// hrefs are read back unchanged
+			NodeList hrefs = doc.getElementsByTagNameNS("DAV:", "href");
+			assertEquals(HREFS.length, hrefs.getLength());
+			for (int i = 0; i < HREFS.length; i++)
+				assertEquals(HREFS[i], hrefs.item(i).getTextContent());
+		}
+	}
+
+	public void testBufferCleared() {
+		ByteArrayBuffer buffer = new ByteArrayBuffer(16);
+		DavMultiget.writeRequest(DavMultiget.Type.CALENDAR, HREFS, buffer);
+		int length = buffer.length();
+
+		DavMultiget.writeRequest(DavMultiget.Type.CALENDAR, HREFS, buffer);
+		assertEquals(length, buffer.length());
+	}
+
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.io.StringWriter;
+import java.net.URI;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.simpleframework.xml.core.Persister;
+
+public class HttpPropfindTest extends TestCase {
+	final static URI uri = URI.create("https://example.com/dav/");
+
+	public void testBodiesMatchSerializer() throws Exception {
+		for (HttpPropfind.Mode mode : HttpPropfind.Mode.values()) {
+			StringWriter writer = new StringWriter();
+			new Persister().write(HttpPropfind.newPropfind(mode), writer);
+
+			HttpPropfind propfind = new HttpPropfind(uri, mode);
+			assertFalse(propfind.isAborted());
+			assertEquals(writer.toString(), IOUtils.toString(propfind.getEntity().getContent(), "UTF-8"));
+
+			// pre-rendered body is used for every request of this mode
+			assertEquals(writer.toString(), IOUtils.toString(new HttpPropfind(uri, mode).getEntity().getContent(), "UTF-8"));
+		}
+	}
+
+	public void testDepth() {
+		assertEquals("0", new HttpPropfind(uri, HttpPropfind.Mode.CURRENT_USER_PRINCIPAL).getFirstHeader("Depth").getValue());
+		assertEquals("0", new HttpPropfind(uri, HttpPropfind.Mode.COLLECTION_CTAG).getFirstHeader("Depth").getValue());
+		assertEquals("1", new HttpPropfind(uri, HttpPropfind.Mode.CALDAV_COLLECTIONS).getFirstHeader("Depth").getValue());
+		assertEquals("1", new HttpPropfind(uri, HttpPropfind.Mode.MEMBERS_ETAG).getFirstHeader("Depth").getValue());
+	}
+
+}
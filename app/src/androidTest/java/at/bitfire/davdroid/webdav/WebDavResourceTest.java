@@ -10,6 +10,7 @@ package at.bitfire.davdroid.webdav;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -239,6 +240,57 @@ public class WebDavResourceTest extends InstrumentationTestCase {
 	
 	/* test CalDAV/CardDAV */
 	
+	public void testCalendarQueryEmpty() throws Exception {
+		WebDavResource dav = new WebDavResource(davCollection, "calendar-query-empty/");
+		final int[] members = { 0 };
+		// no events in the time range: empty Multi-Status is a valid answer
+		dav.calendarQuery(new Date(), null, new WebDavResource.MemberCallback<RuntimeException>() {
+			@Override
+			public void onMember(WebDavResource member) {
+				members[0]++;
+			}
+		});
+		assertEquals(0, members[0]);
+	}
+	
+	public void testSyncCollection() throws Exception {
+		WebDavResource dav = new WebDavResource(davCollection, "sync-collection/");
+		dav.syncCollection("http://example.com/sync/1");
+		
+		// first result has been truncated (507 for the collection) and continued with the new sync-token
+		List<WebDavResource> members = dav.getMembers();
+		assertEquals(2, members.size());
+		assertEquals("changed.vcf", members.get(0).getName());
+		assertEquals("\"changed-etag\"", members.get(0).getETag());
+		assertEquals("continued.vcf", members.get(1).getName());
+		
+		// 404 responses are members which have been removed
+		assertEquals(1, dav.getRemovedMembers().size());
+		assertEquals("removed.vcf", dav.getRemovedMembers().get(0).getName());
+		
+		// sync-token of the last response
+		assertEquals("http://example.com/sync/3", dav.getSyncToken());
+	}
+	
+	public void testSyncCollectionTruncatedWithoutNewToken() throws Exception {
+		WebDavResource dav = new WebDavResource(davCollection, "sync-collection/");
+		try {
+			dav.syncCollection("http://example.com/sync/stuck");
+			fail();
+		} catch(DavException e) {
+		}
+	}
+	
+	public void testSyncCollectionInvalidToken() throws Exception {
+		WebDavResource dav = new WebDavResource(davCollection, "sync-collection/");
+		try {
+			dav.syncCollection("http://example.com/sync/unknown");
+			fail();
+		} catch(HttpException e) {
+			assertEquals(403, e.getCode());
+		}
+	}
+	
 	
 	/* special test */
 	
@@ -288,6 +288,112 @@ exports.getBodyParts = function(conf) {
 				}
             }),
 
+			/* sync-collection (RFC 6578) */
+            new RoboHydraHeadDAV({
+				path: "/dav/sync-collection/",
+				handler: function(req,res,next) {
+					var body = req.rawBody.toString();
+					if (req.method == "REPORT" && body.match(/<sync-token>http:\/\/example\.com\/sync\/1<\/sync-token>/)) {
+						// first part of a truncated result: changed and removed member, 507 for the request URI
+						res.statusCode = 207;
+						res.write('\<?xml version="1.0" encoding="utf-8" ?>\
+							<multistatus xmlns="DAV:">\
+								<response>\
+									<href>/dav/sync-collection/changed.vcf</href>\
+									<propstat>\
+										<prop>\
+											<getetag>"changed-etag"</getetag>\
+										</prop>\
+										<status>HTTP/1.1 200 OK</status>\
+									</propstat>\
+								</response>\
+								<response>\
+									<href>/dav/sync-collection/removed.vcf</href>\
+									<status>HTTP/1.1 404 Not Found</status>\
+								</response>\
+								<response>\
+									<href>/dav/sync-collection</href>\
+									<status>HTTP/1.1 507 Insufficient Storage</status>\
+								</response>\
+								<sync-token>http://example.com/sync/2</sync-token>\
+							</multistatus>\
+						');
+					} else if (req.method == "REPORT" && body.match(/<sync-token>http:\/\/example\.com\/sync\/2<\/sync-token>/)) {
+						// rest of the result
+						res.statusCode = 207;
+						res.write('\<?xml version="1.0" encoding="utf-8" ?>\
+							<multistatus xmlns="DAV:">\
+								<response>\
+									<href>/dav/sync-collection/continued.vcf</href>\
+									<propstat>\
+										<prop>\
+											<getetag>"continued-etag"</getetag>\
+										</prop>\
+										<status>HTTP/1.1 200 OK</status>\
+									</propstat>\
+								</response>\
+								<sync-token>http://example.com/sync/3</sync-token>\
+							</multistatus>\
+						');
+					} else if (req.method == "REPORT" && body.match(/<sync-token>http:\/\/example\.com\/sync\/stuck<\/sync-token>/)) {
+						// truncated result without a new sync-token
+						res.statusCode = 207;
+						res.write('\<?xml version="1.0" encoding="utf-8" ?>\
+							<multistatus xmlns="DAV:">\
+								<response>\
+									<href>/dav/sync-collection/</href>\
+									<status>HTTP/1.1 507 Insufficient Storage</status>\
+								</response>\
+								<sync-token>http://example.com/sync/stuck</sync-token>\
+							</multistatus>\
+						');
+					} else if (req.method == "REPORT") {
+						// unknown sync-token
+						res.statusCode = 403;
+						res.write('\<?xml version="1.0" encoding="utf-8" ?>\
+							<error xmlns="DAV:"><valid-sync-token/></error>\
+						');
+					}
+				}
+            }),
+
+			/* calendar-query without matching events */
+            new RoboHydraHeadDAV({
+				path: "/dav/calendar-query-empty/",
+				handler: function(req,res,next) {
+					if (req.method == "REPORT" && req.rawBody.toString().match(/calendar-query[\s\S]+time-range/m)) {
+						res.statusCode = 207;
+						res.write('\<?xml version="1.0" encoding="utf-8" ?>\
+							<multistatus xmlns="DAV:"/>\
+						');
+					}
+				}
+            }),
+
+			/* calendar-multiget with 40 events (more than the parse queue holds), 7.ics is invalid */
+            new RoboHydraHeadDAV({
+				path: "/dav/calendar-multiget/",
+				handler: function(req,res,next) {
+					if (req.method == "REPORT" && req.rawBody.toString().match(/calendar-multiget[\s\S]+<href>/m)) {
+						res.statusCode = 207;
+						res.write('<?xml version="1.0" encoding="utf-8" ?>' +
+							'<multistatus xmlns="DAV:" xmlns:CAL="urn:ietf:params:xml:ns:caldav">');
+						for (var i = 0; i < 40; i++) {
+							var ical = (i == 7) ?
+								'BEGIN:VCALENDAR\r\nTHIS IS NOT ICALENDAR\r\n' :
+								'BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//RoboHydra//EN\r\n' +
+								'BEGIN:VEVENT\r\nUID:' + i + '@example.com\r\nDTSTAMP:20150101T000000Z\r\n' +
+								'DTSTART:20150101T100000Z\r\nDTEND:20150101T110000Z\r\nSUMMARY:Event ' + i + '\r\n' +
+								'END:VEVENT\r\nEND:VCALENDAR\r\n';
+							res.write('<response><href>/dav/calendar-multiget/' + i + '.ics</href><propstat><prop>' +
+								'<getetag>"' + i + '"</getetag><CAL:calendar-data>' + ical + '</CAL:calendar-data>' +
+								'</prop><status>HTTP/1.1 200 OK</status></propstat></response>');
+						}
+						res.write('</multistatus>');
+					}
+				}
+            }),
+
         ]
     };
 };
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+import android.util.Base64;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DigestUtils {
+
+	/** @return compact (Base64-encoded) SHA-1 digest of the data, for detecting changed content */
+	public static String sha1(byte[] data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return Base64.encodeToString(digest.digest(data), Base64.NO_WRAP);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java implementation supports SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.CalendarParser;
+import net.fortuna.ical4j.data.CalendarParserFactory;
+import net.fortuna.ical4j.model.ParameterFactoryRegistry;
+import net.fortuna.ical4j.model.PropertyFactoryRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
+
+import org.apache.http.util.ByteArrayBuffer;
+import org.simpleframework.xml.Serializer;
+import org.simpleframework.xml.core.Persister;
+
+import ezvcard.io.scribe.ScribeIndex;
+
+/**
+ * Parsers and serializers which are expensive to set up (iCalendar parser and property/parameter factories,
+ * VCard property scribes, XML serializer with its schema cache, request body buffer) and can be used
+ * for any number of entities. Every thread has its own context, so the instances are never shared
+ * between threads. They are created when they're used for the first time by a thread.
+ */
+public class ParserContext {
+
+	// request buffers which have grown larger are not kept after the request [bytes]
+	private static final int MAX_RETAINED_REQUEST_BUFFER = 64*1024;
+
+	private static final ThreadLocal<ParserContext> contexts = new ThreadLocal<ParserContext>() {
+		@Override
+		protected ParserContext initialValue() {
+			return new ParserContext();
+		}
+	};
+
+	/** @return context of the calling thread */
+	public static ParserContext get() {
+		return contexts.get();
+	}
+
+	/** discards the context of the calling thread; the next call of get() returns a new one */
+	public static void reset() {
+		contexts.remove();
+	}
+
+
+	private CalendarParser calendarParser;
+	private PropertyFactoryRegistry propertyFactory;
+	private ParameterFactoryRegistry parameterFactory;
+	private ScribeIndex scribeIndex;
+	private Serializer serializer;
+	private ByteArrayBuffer requestBuffer;
+
+	private ParserContext() {
+	}
+
+	/**
+	 * @return new iCalendar builder for one calendar. The builder registers the VTIMEZONEs of the calendar
+	 * in its own time zone registry, so every calendar needs a new one: otherwise the definitions of earlier
+	 * calendars would be used for TZIDs which the calendar defines differently, and the registry would
+	 * grow with every calendar. Parser and factories are shared (only one calendar may be built at a time).
+	 */
+	public CalendarBuilder newCalendarBuilder() {
+		if (calendarParser == null) {
+			calendarParser = CalendarParserFactory.getInstance().createParser();
+			propertyFactory = new PropertyFactoryRegistry();
+			parameterFactory = new ParameterFactoryRegistry();
+		}
+		return new CalendarBuilder(calendarParser, propertyFactory, parameterFactory,
+				TimeZoneRegistryFactory.getInstance().createRegistry());
+	}
+
+	/** @return VCard property scribes for ezvcard.io.text.VCardReader/VCardWriter */
+	public ScribeIndex getScribeIndex() {
+		if (scribeIndex == null)
+			scribeIndex = new ScribeIndex();
+		return scribeIndex;
+	}
+
+	/** @return SimpleXML serializer for WebDAV requests and responses */
+	public Serializer getSerializer() {
+		if (serializer == null)
+			serializer = new Persister();
+		return serializer;
+	}
+
+	/** @return buffer for request bodies which are written directly (must not be used while another request of the thread is pending) */
+	public ByteArrayBuffer getRequestBuffer() {
+		if (requestBuffer == null)
+			requestBuffer = new ByteArrayBuffer(8192);
+		return requestBuffer;
+	}
+
+	/** to be called after a request: discards the request buffer if a large request has let it grow */
+	public void trimRequestBuffer() {
+		if (requestBuffer != null && requestBuffer.capacity() > MAX_RETAINED_REQUEST_BUFFER)
+			requestBuffer = null;
+	}
+
+}
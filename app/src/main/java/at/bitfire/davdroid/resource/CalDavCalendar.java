@@ -7,14 +7,25 @@
  ******************************************************************************/
 package at.bitfire.davdroid.resource;
 
+import android.util.Log;
+
 import org.apache.http.impl.client.CloseableHttpClient;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Date;
 
+import at.bitfire.davdroid.webdav.DavException;
 import at.bitfire.davdroid.webdav.DavMultiget;
+import at.bitfire.davdroid.webdav.HttpException;
+import lombok.Getter;
+import lombok.Setter;
 
 public class CalDavCalendar extends RemoteCollection<Event> { 
-	//private final static String TAG = "davdroid.CalDavCalendar";
+	private final static String TAG = "davdroid.CalDavCalendar";
+	
+	/** start of the sync window: only events which end after this date are listed (null = all events) */
+	@Getter @Setter Date syncWindowStart;
 	
 	@Override
 	protected String memberContentType() {
@@ -35,4 +46,22 @@ public class CalDavCalendar extends RemoteCollection<Event> {
 	public CalDavCalendar(CloseableHttpClient httpClient, String baseURL, String user, String password, boolean preemptiveAuth) throws URISyntaxException {
 		super(httpClient, baseURL, user, password, preemptiveAuth);
 	}
+	
+	/**
+	 * Fetches the names and ETags of all members, or (if there's a sync window) of the events which
+	 * overlap the sync window, using a calendar-query REPORT with time-range.
+	 */
+	@Override
+	public <E extends Exception> void getMemberETags(ResourceCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		if (syncWindowStart == null) {
+			super.getMemberETags(callback);
+			return;
+		}
+		
+		// calendar-query doesn't return the sync-token, so make sure it's known before the listing
+		getCTag();
+		
+		Log.i(TAG, "Listing events since " + syncWindowStart);
+		collection.calendarQuery(syncWindowStart, null, skeletonCallback(callback));
+	}
 }
@@ -11,18 +11,21 @@ import android.util.Log;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 
 import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.ParserContext;
 import ezvcard.Ezvcard;
 import ezvcard.VCard;
 import ezvcard.VCardVersion;
 import ezvcard.ValidationWarnings;
+import ezvcard.io.text.VCardReader;
 import ezvcard.parameter.EmailType;
 import ezvcard.parameter.ImageType;
 import ezvcard.parameter.TelephoneType;
@@ -130,7 +133,7 @@ public class Contact extends Resource {
 	@SuppressWarnings("LoopStatementThatDoesntLoop")
     @Override
 	public void parseEntity(InputStream is) throws IOException {
-		VCard vcard = Ezvcard.parse(is).first();
+		VCard vcard = readVCard(new VCardReader(is));
 		if (vcard == null)
 			return;
 		
@@ -288,11 +291,11 @@ public class Contact extends Resource {
 
 	
 	@Override
-	public ByteArrayOutputStream toEntity() throws IOException {
+	public void writeEntity(OutputStream os) throws IOException {
 		VCard vcard = null;
 		try {
 			if (unknownProperties != null)
-				vcard = Ezvcard.parse(unknownProperties).first();
+				vcard = readVCard(new VCardReader(new StringReader(unknownProperties)));
 		} catch (Exception e) {
 			Log.w(TAG, "Couldn't parse original property set, beginning from scratch");
 		}
@@ -399,13 +402,17 @@ public class Contact extends Resource {
 		if (!warnings.isEmpty())
 			Log.w(TAG, "Created potentially invalid VCard! " + warnings);
 		
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
 		Ezvcard
 			.write(vcard)
 			.version(VCardVersion.V3_0)
 			.versionStrict(false)
 			.prodId(false)		// we provide our own PRODID
 			.go(os);
-		return os;
+	}
+	
+	/** reads the first VCard using the property scribes of the calling thread */
+	private static VCard readVCard(VCardReader reader) throws IOException {
+		reader.setScribeIndex(ParserContext.get().getScribeIndex());
+		return reader.readNext();
 	}
 }
@@ -9,9 +9,10 @@ package at.bitfire.davdroid.resource;
 
 import android.text.format.Time;
 import android.util.Log;
+import android.util.LruCache;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
-import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.data.FoldingWriter;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.ComponentList;
@@ -21,7 +22,6 @@ import net.fortuna.ical4j.model.DefaultTimeZoneRegistryFactory;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyList;
 import net.fortuna.ical4j.model.TimeZoneRegistry;
-import net.fortuna.ical4j.model.ValidationException;
 import net.fortuna.ical4j.model.component.VAlarm;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.component.VTimeZone;
@@ -47,20 +47,27 @@ import net.fortuna.ical4j.model.property.Transp;
 import net.fortuna.ical4j.model.property.Uid;
 import net.fortuna.ical4j.model.property.Version;
 import net.fortuna.ical4j.util.CompatibilityHints;
+import net.fortuna.ical4j.util.Strings;
 import net.fortuna.ical4j.util.SimpleHostInfo;
 import net.fortuna.ical4j.util.UidGenerator;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.SimpleTimeZone;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.DigestUtils;
+import at.bitfire.davdroid.ParserContext;
 import at.bitfire.davdroid.syncadapter.DavSyncAdapter;
 import lombok.Getter;
 import lombok.NonNull;
@@ -74,6 +81,16 @@ public class Event extends Resource {
 	
 	private final static TimeZoneRegistry tzRegistry = new DefaultTimeZoneRegistryFactory().createRegistry();
 	
+	/** time zones which have already been guessed by validateTimeZone(), by TZID (shared by all events) */
+	final static ConcurrentMap<String, ResolvedTimeZone> resolvedTimeZones = new ConcurrentHashMap<String, ResolvedTimeZone>();
+	final static int MAX_RESOLVED_TIMEZONES = 500;
+	
+	/** TZIDs of VTIMEZONE definitions which have already been parsed by TimezoneDefToTzId(), by digest of the definition */
+	final static LruCache<String, String> timezoneDefTzIds = new LruCache<String, String>(100);
+	
+	/** serialized VTIMEZONE components of the time zones used by writeEntity(), by TZID */
+	private final static ConcurrentMap<String, String> serializedVTimeZones = new ConcurrentHashMap<String, String>();
+	
 	@Getter @Setter private String summary, location, description;
 	
 	@Getter private DtStart dtStart;
@@ -136,7 +153,7 @@ public class Event extends Resource {
 	public void parseEntity(@NonNull InputStream entity) throws IOException, InvalidResourceException {
 		net.fortuna.ical4j.model.Calendar ical;
 		try {
-			CalendarBuilder builder = new CalendarBuilder();
+			CalendarBuilder builder = ParserContext.get().newCalendarBuilder();
 			ical = builder.build(entity);
 
 			if (ical == null)
@@ -209,7 +226,7 @@ public class Event extends Resource {
 
 	@Override
 	@SuppressWarnings("unchecked")
-	public ByteArrayOutputStream toEntity() throws IOException {
+	public void writeEntity(OutputStream os) throws IOException {
 		net.fortuna.ical4j.model.Calendar ical = new net.fortuna.ical4j.model.Calendar();
 		ical.getProperties().add(Version.VERSION_2_0);
 		ical.getProperties().add(new ProdId("-//bitfire web engineering//DAVdroid " + Constants.APP_VERSION + " (ical4j 1.0.x)//EN"));
@@ -257,25 +274,33 @@ public class Event extends Resource {
 		event.getAlarms().addAll(alarms);
 		
 		props.add(new LastModified());
-		ical.getComponents().add(event);
 
-		// add VTIMEZONE components
 		net.fortuna.ical4j.model.TimeZone
 			tzStart = (dtStart == null ? null : dtStart.getTimeZone()),
 			tzEnd = (dtEnd == null ? null : dtEnd.getTimeZone());
+
+		// write the calendar component by component (like CalendarOutputter, but without building the whole
+		// iCalendar as one String); VTIMEZONE components are serialized only once per time zone
+		Writer writer = new FoldingWriter(new OutputStreamWriter(os, "UTF-8"), FoldingWriter.REDUCED_FOLD_LENGTH);
+		writer.write(Component.BEGIN + ':' + net.fortuna.ical4j.model.Calendar.VCALENDAR + Strings.LINE_SEPARATOR);
+		writer.write(ical.getProperties().toString());
+		writer.write(event.toString());
 		if (tzStart != null)
-			ical.getComponents().add(tzStart.getVTimeZone());
+			writer.write(serializedVTimeZone(tzStart));
 		if (tzEnd != null && tzEnd != tzStart)
-			ical.getComponents().add(tzEnd.getVTimeZone());
-
-		CalendarOutputter output = new CalendarOutputter(false);
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		try {
-			output.output(ical, os);
-		} catch (ValidationException e) {
-			Log.e(TAG, "Generated invalid iCalendar");
+			writer.write(serializedVTimeZone(tzEnd));
+		writer.write(Component.END + ':' + net.fortuna.ical4j.model.Calendar.VCALENDAR + Strings.LINE_SEPARATOR);
+		writer.flush();		// don't close the output stream
+	}
+	
+	/** @return VTIMEZONE component of the time zone (not folded yet) */
+	private static String serializedVTimeZone(net.fortuna.ical4j.model.TimeZone tz) {
+		String serialized = serializedVTimeZones.get(tz.getID());
+		if (serialized == null) {
+			serialized = tz.getVTimeZone().toString();
+			serializedVTimeZones.putIfAbsent(tz.getID(), serialized);
 		}
-		return os;
+		return serialized;
 	}
 
 	
@@ -348,26 +373,57 @@ public class Event extends Resource {
 		if (tzID == null)
 			return;
 		
+		ResolvedTimeZone resolved = resolvedTimeZones.get(tzID);
+		if (resolved == null) {
+			resolved = resolveTimeZone(tzID);
+			if (resolvedTimeZones.size() < MAX_RESOLVED_TIMEZONES)
+				resolvedTimeZones.putIfAbsent(tzID, resolved);
+		}
+		date.setTimeZone(resolved.timeZone);
+	}
+	
+	private static ResolvedTimeZone resolveTimeZone(String tzID) {
 		String localTZ = Time.TIMEZONE_UTC;
 		
-		String availableTZs[] = SimpleTimeZone.getAvailableIDs();
-		for (String availableTZ : availableTZs)
+		for (String availableTZ : AvailableTimeZones.IDS)
 			if (tzID.indexOf(availableTZ, 0) != -1) {
 				localTZ = availableTZ;
 				break;
 			}
 		
 		Log.d(TAG, "Assuming time zone " + localTZ + " for " + tzID);
-		date.setTimeZone(tzRegistry.getTimeZone(localTZ));
+		return new ResolvedTimeZone(tzRegistry.getTimeZone(localTZ));
+	}
+	
+	/** result of resolveTimeZone(); time zone is null if the registry doesn't know it (ConcurrentMap can't store null) */
+	static class ResolvedTimeZone {
+		final net.fortuna.ical4j.model.TimeZone timeZone;
+		
+		ResolvedTimeZone(net.fortuna.ical4j.model.TimeZone timeZone) {
+			this.timeZone = timeZone;
+		}
+	}
+	
+	/** Android time zone IDs, loaded once when the first time zone has to be guessed */
+	private static class AvailableTimeZones {
+		static final String[] IDS = SimpleTimeZone.getAvailableIDs();
 	}
 
 	public static String TimezoneDefToTzId(String timezoneDef) throws IllegalArgumentException {
 		try {
 			if (timezoneDef != null) {
-				CalendarBuilder builder = new CalendarBuilder();
+				// calendars of an account usually share the same few time zone definitions
+				String digest = DigestUtils.sha1(timezoneDef.getBytes("UTF-8"));
+				String tzID = timezoneDefTzIds.get(digest);
+				if (tzID != null)
+					return tzID;
+				
+				CalendarBuilder builder = ParserContext.get().newCalendarBuilder();
 				net.fortuna.ical4j.model.Calendar cal = builder.build(new StringReader(timezoneDef));
 				VTimeZone timezone = (VTimeZone)cal.getComponent(VTimeZone.VTIMEZONE);
-				return timezone.getTimeZoneId().getValue();
+				tzID = timezone.getTimeZoneId().getValue();
+				timezoneDefTzIds.put(digest, tzID);
+				return tzID;
 			}
 		} catch (Exception ex) {
 			Log.w(TAG, "Can't understand time zone definition, ignoring", ex);
@@ -15,7 +15,6 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.ContactsContract.CommonDataKinds;
@@ -44,13 +43,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
+import at.bitfire.davdroid.DigestUtils;
 import at.bitfire.davdroid.syncadapter.AccountSettings;
 import ezvcard.parameter.AddressType;
 import ezvcard.parameter.EmailType;
@@ -88,6 +92,7 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	protected String entryColumnID()			{ return RawContacts._ID; }
 	protected String entryColumnRemoteName()	{ return RawContacts.SOURCE_ID; }
 	protected String entryColumnETag()			{ return RawContacts.SYNC2; }
+	protected String entryColumnContentDigest()	{ return RawContacts.SYNC4; }
 	
 	protected String entryColumnDirty()			{ return RawContacts.DIRTY; }
 	protected String entryColumnDeleted()		{ return RawContacts.DELETED; }
@@ -118,6 +123,16 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	public void setCTag(String cTag) {
 		accountSettings.setAddressBookCTag(cTag);
 	}
+	
+	@Override
+	public String getSyncToken() {
+		return accountSettings.getAddressBookSyncToken();
+	}
+	
+	@Override
+	public void setSyncToken(String syncToken) {
+		accountSettings.setAddressBookSyncToken(syncToken);
+	}
 
 	
 	/* create/update/delete */
@@ -126,23 +141,6 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 		return new Contact(localID, resourceName, eTag);
 	}
 	
-	public void deleteAllExceptRemoteNames(Resource[] remoteResources) {
-		String where;
-		
-		if (remoteResources.length != 0) {
-			List<String> sqlFileNames = new LinkedList<String>();
-			for (Resource res : remoteResources)
-				sqlFileNames.add(DatabaseUtils.sqlEscapeString(res.getName()));
-			where = entryColumnRemoteName() + " NOT IN (" + StringUtils.join(sqlFileNames, ",") + ")";
-		} else
-			where = entryColumnRemoteName() + " IS NOT NULL";
-			
-		Builder builder = ContentProviderOperation.newDelete(entriesURI()).withSelection(where, null);
-		pendingOperations.add(builder
-				.withYieldAllowed(true)
-				.build());
-	}
-	
 	@Override
 	public void commit() throws LocalStorageException {
 		super.commit();
@@ -173,426 +171,432 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	
 	/* methods for populating the data object from the content provider */
 
+	// columns of ContactsContract.Data which are read for populating contacts
+	private final static String[] DATA_PROJECTION = new String[] {
+		Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.IS_SUPER_PRIMARY, GroupMembership.GROUP_SOURCE_ID,
+		Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5, Data.DATA6, Data.DATA7, Data.DATA8,
+		Data.DATA9, Data.DATA10, Data.DATA11, Data.DATA12, Data.DATA13, Data.DATA14, Data.DATA15
+	};
+	
+	// name parts which are calculated by the content provider from the display name, if none of them is set
+	private final static String[] STRUCTURED_NAME_PARTS = new String[] {
+		StructuredName.PREFIX, StructuredName.GIVEN_NAME, StructuredName.MIDDLE_NAME,
+		StructuredName.FAMILY_NAME, StructuredName.SUFFIX
+	};
+	
+	// max. number of contacts which are populated by one query
+	private final static int MAX_POPULATE_CONTACTS = 200;
+	
+	// MIME types of data kinds which are populated from the first data row of a contact only
+	private final static Set<String> SINGLE_VALUED_MIMETYPES = new HashSet<String>(Arrays.asList(
+		StructuredName.CONTENT_ITEM_TYPE, Photo.CONTENT_ITEM_TYPE, Organization.CONTENT_ITEM_TYPE,
+		Nickname.CONTENT_ITEM_TYPE, Note.CONTENT_ITEM_TYPE, SipAddress.CONTENT_ITEM_TYPE
+	));
+
 	@Override
 	public void populate(Resource res) throws LocalStorageException {
-		Contact c = (Contact)res;
-		
-		try {
-			@Cleanup Cursor cursor = providerClient.query(ContentUris.withAppendedId(entriesURI(), c.getLocalID()),
-				new String[] { entryColumnUID(), COLUMN_UNKNOWN_PROPERTIES, RawContacts.STARRED }, null, null, null);
-			if (cursor != null && cursor.moveToNext()) {
-				c.setUid(cursor.getString(0));
-				c.setUnknownProperties(cursor.getString(1));
-				c.setStarred(cursor.getInt(2) != 0);
-			} else
-				throw new RecordNotFoundException();
-		
-			populateStructuredName(c);
-			populatePhoneNumbers(c);
-			populateEmailAddresses(c);
-			populatePhoto(c);
-			populateOrganization(c);
-			populateIMPPs(c);
-			populateNickname(c);
-			populateNote(c);
-			populatePostalAddresses(c);
-			populateCategories(c);
-			populateURLs(c);
-			populateEvents(c);
-			populateSipAddress(c);
-		} catch(RemoteException ex) {
-			throw new LocalStorageException(ex);
-		}
+		populate(new Resource[] { res });
 	}
-
-	private void populateStructuredName(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] {
-				/* 0 */ StructuredName.DISPLAY_NAME, StructuredName.PREFIX, StructuredName.GIVEN_NAME,
-				/* 3 */ StructuredName.MIDDLE_NAME,	StructuredName.FAMILY_NAME, StructuredName.SUFFIX,
-				/* 6 */ StructuredName.PHONETIC_GIVEN_NAME, StructuredName.PHONETIC_MIDDLE_NAME, StructuredName.PHONETIC_FAMILY_NAME
-			}, StructuredName.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-			new String[] { String.valueOf(c.getLocalID()), StructuredName.CONTENT_ITEM_TYPE }, null);
-		
-		if (cursor != null && cursor.moveToNext()) {
-			c.setDisplayName(cursor.getString(0));
-			
-			c.setPrefix(cursor.getString(1));
-			c.setGivenName(cursor.getString(2));
-			c.setMiddleName(cursor.getString(3));
-			c.setFamilyName(cursor.getString(4));
-			c.setSuffix(cursor.getString(5));
+	
+	/**
+	 * Populates multiple contacts with two queries per MAX_POPULATE_CONTACTS contacts: one for the
+	 * raw contacts and one for all their data rows (ordered by raw contact ID), which are dispatched
+	 * by MIME type. This avoids one query per contact and data kind. Of single-valued data kinds
+	 * (like the structured name), only the first row of a contact is used.
+	 * @throws RecordNotFoundException when one of the raw contacts doesn't exist anymore
+	 */
+	@Override
+	public void populate(Resource[] resources) throws LocalStorageException {
+		for (int start = 0; start < resources.length; start += MAX_POPULATE_CONTACTS) {
+			Map<Long, Contact> contacts = new HashMap<Long, Contact>();
+			for (int i = start; i < Math.min(start + MAX_POPULATE_CONTACTS, resources.length); i++)
+				contacts.put(resources[i].getLocalID(), (Contact)resources[i]);
+			String whereIDs = " IN (" + StringUtils.join(contacts.keySet(), ",") + ")";
 			
-			c.setPhoneticGivenName(cursor.getString(6));
-			c.setPhoneticMiddleName(cursor.getString(7));
-			c.setPhoneticFamilyName(cursor.getString(8));
+			try {
+				@Cleanup Cursor cursor = providerClient.query(entriesURI(),
+					new String[] { entryColumnID(), entryColumnUID(), COLUMN_UNKNOWN_PROPERTIES, RawContacts.STARRED },
+					entryColumnID() + whereIDs, null, null);
+				int found = 0;
+				while (cursor != null && cursor.moveToNext()) {
+					Contact c = contacts.get(cursor.getLong(0));
+					c.setUid(cursor.getString(1));
+					c.setUnknownProperties(cursor.getString(2));
+					c.setStarred(cursor.getInt(3) != 0);
+					found++;
+				}
+				if (found != contacts.size())
+					throw new RecordNotFoundException();
+				
+				@Cleanup Cursor dataCursor = providerClient.query(dataURI(), DATA_PROJECTION,
+					Data.RAW_CONTACT_ID + whereIDs, null, Data.RAW_CONTACT_ID + "," + Data._ID);
+				Contact c = null;
+				Set<String> populatedMimeTypes = new HashSet<String>();
+				while (dataCursor != null && dataCursor.moveToNext()) {
+					long rawContactID = dataCursor.getLong(0);
+					if (c == null || c.getLocalID() != rawContactID) {
+						c = contacts.get(rawContactID);
+						populatedMimeTypes.clear();
+					}
+					String mimeType = dataCursor.getString(1);
+					if (SINGLE_VALUED_MIMETYPES.contains(mimeType) && !populatedMimeTypes.add(mimeType))
+						continue;
+					populateData(c, mimeType, rowToValues(dataCursor));
+				}
+			} catch(RemoteException ex) {
+				throw new LocalStorageException(ex);
+			}
 		}
 	}
 	
-	protected void populatePhoneNumbers(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { Phone.TYPE, Phone.LABEL, Phone.NUMBER, Phone.IS_SUPER_PRIMARY },
-				Phone.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Phone.CONTENT_ITEM_TYPE }, null);
-		while (cursor != null && cursor.moveToNext()) {
-			ezvcard.property.Telephone number = new ezvcard.property.Telephone(cursor.getString(2));
-			switch (cursor.getInt(0)) {
-			case Phone.TYPE_HOME:
-				number.addType(TelephoneType.HOME);
-				break;
-			case Phone.TYPE_MOBILE:
-				number.addType(TelephoneType.CELL);
-				break;
-			case Phone.TYPE_WORK:
-				number.addType(TelephoneType.WORK);
-				break;
-			case Phone.TYPE_FAX_WORK:
-				number.addType(TelephoneType.FAX);
-				number.addType(TelephoneType.WORK);
-				break;
-			case Phone.TYPE_FAX_HOME:
-				number.addType(TelephoneType.FAX);
-				number.addType(TelephoneType.HOME);
-				break;
-			case Phone.TYPE_PAGER:
-				number.addType(TelephoneType.PAGER);
-				break;
-			case Phone.TYPE_CALLBACK:
-				number.addType(Contact.PHONE_TYPE_CALLBACK);
-				break;
-			case Phone.TYPE_CAR:
-				number.addType(TelephoneType.CAR);
-				break;
-			case Phone.TYPE_COMPANY_MAIN:
-				number.addType(Contact.PHONE_TYPE_COMPANY_MAIN);
-				break;
-			case Phone.TYPE_ISDN:
-				number.addType(TelephoneType.ISDN);
-				break;
-			case Phone.TYPE_MAIN:
-				number.addType(TelephoneType.PREF);
-				break;
-			case Phone.TYPE_OTHER_FAX:
-				number.addType(TelephoneType.FAX);
-				break;
-			case Phone.TYPE_RADIO:
-				number.addType(Contact.PHONE_TYPE_RADIO);
-				break;
-			case Phone.TYPE_TELEX:
-				number.addType(TelephoneType.TEXTPHONE);
-				break;
-			case Phone.TYPE_TTY_TDD:
-				number.addType(TelephoneType.TEXT);
-				break;
-			case Phone.TYPE_WORK_MOBILE:
-				number.addType(TelephoneType.CELL);
-				number.addType(TelephoneType.WORK);
-				break;
-			case Phone.TYPE_WORK_PAGER:
-				number.addType(TelephoneType.PAGER);
-				number.addType(TelephoneType.WORK);
-				break;
-			case Phone.TYPE_ASSISTANT:
-				number.addType(Contact.PHONE_TYPE_ASSISTANT);
-				break;
-			case Phone.TYPE_MMS:
-				number.addType(Contact.PHONE_TYPE_MMS);
-				break;
-			case Phone.TYPE_CUSTOM:
-				String customType = cursor.getString(1);
-				if (!StringUtils.isEmpty(customType))
-					number.addType(TelephoneType.get(labelToXName(customType)));
-			}
-			if (cursor.getInt(3) != 0)	// IS_PRIMARY
-				number.addType(TelephoneType.PREF);
-			c.getPhoneNumbers().add(number);
-		}
+	/** integer value of a data column like Cursor.getInt() (0 if NULL) */
+	private static int getInt(ContentValues row, String column) {
+		Integer value = row.getAsInteger(column);
+		return (value != null) ? value : 0;
 	}
 	
-	protected void populateEmailAddresses(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { Email.TYPE, Email.ADDRESS, Email.LABEL, Email.IS_SUPER_PRIMARY },
-				Email.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Email.CONTENT_ITEM_TYPE }, null);
-		while (cursor != null && cursor.moveToNext()) {
-			ezvcard.property.Email email = new ezvcard.property.Email(cursor.getString(1));
-			switch (cursor.getInt(0)) {
-			case Email.TYPE_HOME:
-				email.addType(EmailType.HOME);
-				break;
-			case Email.TYPE_WORK:
-				email.addType(EmailType.WORK);
-				break;
-			case Email.TYPE_MOBILE:
-				email.addType(Contact.EMAIL_TYPE_MOBILE);
-				break;
-			case Email.TYPE_CUSTOM:
-				String customType = cursor.getString(2);
-				if (!StringUtils.isEmpty(customType))
-					email.addType(EmailType.get(labelToXName(customType)));
-			}
-			if (cursor.getInt(3) != 0)	// IS_PRIMARY
-				email.addType(EmailType.PREF);
-			c.getEmails().add(email);
+	protected void populateData(Contact c, String mimeType, ContentValues row) throws RemoteException {
+		if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateStructuredName(c, row);
+		else if (Phone.CONTENT_ITEM_TYPE.equals(mimeType))
+			populatePhoneNumber(c, row);
+		else if (Email.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateEmailAddress(c, row);
+		else if (Photo.CONTENT_ITEM_TYPE.equals(mimeType))
+			populatePhoto(c, row);
+		else if (Organization.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateOrganization(c, row);
+		else if (Im.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateIMPP(c, row);
+		else if (Nickname.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateNickname(c, row);
+		else if (Note.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateNote(c, row);
+		else if (StructuredPostal.CONTENT_ITEM_TYPE.equals(mimeType))
+			populatePostalAddress(c, row);
+		else if (GroupMembership.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateCategory(c, row);
+		else if (Website.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateURL(c, row);
+		else if (CommonDataKinds.Event.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateEvent(c, row);
+		else if (SipAddress.CONTENT_ITEM_TYPE.equals(mimeType))
+			populateSipAddress(c, row);
+	}
+
+	private void populateStructuredName(Contact c, ContentValues row) {
+		c.setDisplayName(row.getAsString(StructuredName.DISPLAY_NAME));
+		
+		c.setPrefix(row.getAsString(StructuredName.PREFIX));
+		c.setGivenName(row.getAsString(StructuredName.GIVEN_NAME));
+		c.setMiddleName(row.getAsString(StructuredName.MIDDLE_NAME));
+		c.setFamilyName(row.getAsString(StructuredName.FAMILY_NAME));
+		c.setSuffix(row.getAsString(StructuredName.SUFFIX));
+		
+		c.setPhoneticGivenName(row.getAsString(StructuredName.PHONETIC_GIVEN_NAME));
+		c.setPhoneticMiddleName(row.getAsString(StructuredName.PHONETIC_MIDDLE_NAME));
+		c.setPhoneticFamilyName(row.getAsString(StructuredName.PHONETIC_FAMILY_NAME));
+	}
+	
+	protected void populatePhoneNumber(Contact c, ContentValues row) {
+		ezvcard.property.Telephone number = new ezvcard.property.Telephone(row.getAsString(Phone.NUMBER));
+		switch (getInt(row, Phone.TYPE)) {
+		case Phone.TYPE_HOME:
+			number.addType(TelephoneType.HOME);
+			break;
+		case Phone.TYPE_MOBILE:
+			number.addType(TelephoneType.CELL);
+			break;
+		case Phone.TYPE_WORK:
+			number.addType(TelephoneType.WORK);
+			break;
+		case Phone.TYPE_FAX_WORK:
+			number.addType(TelephoneType.FAX);
+			number.addType(TelephoneType.WORK);
+			break;
+		case Phone.TYPE_FAX_HOME:
+			number.addType(TelephoneType.FAX);
+			number.addType(TelephoneType.HOME);
+			break;
+		case Phone.TYPE_PAGER:
+			number.addType(TelephoneType.PAGER);
+			break;
+		case Phone.TYPE_CALLBACK:
+			number.addType(Contact.PHONE_TYPE_CALLBACK);
+			break;
+		case Phone.TYPE_CAR:
+			number.addType(TelephoneType.CAR);
+			break;
+		case Phone.TYPE_COMPANY_MAIN:
+			number.addType(Contact.PHONE_TYPE_COMPANY_MAIN);
+			break;
+		case Phone.TYPE_ISDN:
+			number.addType(TelephoneType.ISDN);
+			break;
+		case Phone.TYPE_MAIN:
+			number.addType(TelephoneType.PREF);
+			break;
+		case Phone.TYPE_OTHER_FAX:
+			number.addType(TelephoneType.FAX);
+			break;
+		case Phone.TYPE_RADIO:
+			number.addType(Contact.PHONE_TYPE_RADIO);
+			break;
+		case Phone.TYPE_TELEX:
+			number.addType(TelephoneType.TEXTPHONE);
+			break;
+		case Phone.TYPE_TTY_TDD:
+			number.addType(TelephoneType.TEXT);
+			break;
+		case Phone.TYPE_WORK_MOBILE:
+			number.addType(TelephoneType.CELL);
+			number.addType(TelephoneType.WORK);
+			break;
+		case Phone.TYPE_WORK_PAGER:
+			number.addType(TelephoneType.PAGER);
+			number.addType(TelephoneType.WORK);
+			break;
+		case Phone.TYPE_ASSISTANT:
+			number.addType(Contact.PHONE_TYPE_ASSISTANT);
+			break;
+		case Phone.TYPE_MMS:
+			number.addType(Contact.PHONE_TYPE_MMS);
+			break;
+		case Phone.TYPE_CUSTOM:
+			String customType = row.getAsString(Phone.LABEL);
+			if (!StringUtils.isEmpty(customType))
+				number.addType(TelephoneType.get(labelToXName(customType)));
 		}
+		if (getInt(row, Phone.IS_SUPER_PRIMARY) != 0)
+			number.addType(TelephoneType.PREF);
+		c.getPhoneNumbers().add(number);
 	}
 	
-	protected void populatePhoto(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(),
-				new String[] { Photo.PHOTO_FILE_ID, Photo.PHOTO },
-				Photo.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Photo.CONTENT_ITEM_TYPE }, null);
-		if (cursor != null && cursor.moveToNext()) {
-			if (!cursor.isNull(0)) {
-				Uri photoUri = Uri.withAppendedPath(
-			             ContentUris.withAppendedId(RawContacts.CONTENT_URI, c.getLocalID()),
-			             RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
-				try {
-					@Cleanup AssetFileDescriptor fd = providerClient.openAssetFile(photoUri, "r");
-					@Cleanup InputStream is = fd.createInputStream();
-					c.setPhoto(IOUtils.toByteArray(is));
-				} catch(IOException ex) {
-					Log.w(TAG, "Couldn't read high-res contact photo", ex);
-				}
-			} else
-				c.setPhoto(cursor.getBlob(1));
+	protected void populateEmailAddress(Contact c, ContentValues row) {
+		ezvcard.property.Email email = new ezvcard.property.Email(row.getAsString(Email.ADDRESS));
+		switch (getInt(row, Email.TYPE)) {
+		case Email.TYPE_HOME:
+			email.addType(EmailType.HOME);
+			break;
+		case Email.TYPE_WORK:
+			email.addType(EmailType.WORK);
+			break;
+		case Email.TYPE_MOBILE:
+			email.addType(Contact.EMAIL_TYPE_MOBILE);
+			break;
+		case Email.TYPE_CUSTOM:
+			String customType = row.getAsString(Email.LABEL);
+			if (!StringUtils.isEmpty(customType))
+				email.addType(EmailType.get(labelToXName(customType)));
 		}
+		if (getInt(row, Email.IS_SUPER_PRIMARY) != 0)
+			email.addType(EmailType.PREF);
+		c.getEmails().add(email);
 	}
 	
-	protected void populateOrganization(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(),
-				new String[] { Organization.COMPANY, Organization.DEPARTMENT, Organization.TITLE, Organization.JOB_DESCRIPTION },
-				Organization.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Organization.CONTENT_ITEM_TYPE }, null);
-		if (cursor != null && cursor.moveToNext()) {
-			String	company = cursor.getString(0),
-					department = cursor.getString(1),
-					title = cursor.getString(2),
-					role = cursor.getString(3);
-			if (!StringUtils.isEmpty(company) || !StringUtils.isEmpty(department)) {
-				ezvcard.property.Organization org = new ezvcard.property.Organization();
-				if (!StringUtils.isEmpty(company))
-					org.addValue(company);
-				if (!StringUtils.isEmpty(department))
-					org.addValue(department);
-				c.setOrganization(org);
+	protected void populatePhoto(Contact c, ContentValues row) throws RemoteException {
+		if (row.get(Photo.PHOTO_FILE_ID) != null) {
+			Uri photoUri = Uri.withAppendedPath(
+		             ContentUris.withAppendedId(RawContacts.CONTENT_URI, c.getLocalID()),
+		             RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+			try {
+				@Cleanup AssetFileDescriptor fd = providerClient.openAssetFile(photoUri, "r");
+				@Cleanup InputStream is = fd.createInputStream();
+				c.setPhoto(IOUtils.toByteArray(is));
+			} catch(IOException ex) {
+				Log.w(TAG, "Couldn't read high-res contact photo", ex);
 			}
-			if (!StringUtils.isEmpty(title))
-				c.setJobTitle(title);
-			if (!StringUtils.isEmpty(role))
-				c.setJobDescription(role);
+		} else
+			c.setPhoto(row.getAsByteArray(Photo.PHOTO));
+	}
+	
+	protected void populateOrganization(Contact c, ContentValues row) {
+		String	company = row.getAsString(Organization.COMPANY),
+				department = row.getAsString(Organization.DEPARTMENT),
+				title = row.getAsString(Organization.TITLE),
+				role = row.getAsString(Organization.JOB_DESCRIPTION);
+		if (!StringUtils.isEmpty(company) || !StringUtils.isEmpty(department)) {
+			ezvcard.property.Organization org = new ezvcard.property.Organization();
+			if (!StringUtils.isEmpty(company))
+				org.addValue(company);
+			if (!StringUtils.isEmpty(department))
+				org.addValue(department);
+			c.setOrganization(org);
 		}
+		if (!StringUtils.isEmpty(title))
+			c.setJobTitle(title);
+		if (!StringUtils.isEmpty(role))
+			c.setJobDescription(role);
 	}
 	
-	protected void populateIMPPs(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { Im.DATA, Im.TYPE, Im.LABEL, Im.PROTOCOL, Im.CUSTOM_PROTOCOL },
-				Im.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Im.CONTENT_ITEM_TYPE }, null);
-		while (cursor != null && cursor.moveToNext()) {
-			String handle = cursor.getString(0);
-			
-			Impp impp = null;
-			switch (cursor.getInt(3)) {
-			case Im.PROTOCOL_AIM:
-				impp = Impp.aim(handle);
-				break;
-			case Im.PROTOCOL_MSN:
-				impp = Impp.msn(handle);
-				break;
-			case Im.PROTOCOL_YAHOO:
-				impp = Impp.yahoo(handle);
-				break;
-			case Im.PROTOCOL_SKYPE:
-				impp = Impp.skype(handle);
-				break;
-			case Im.PROTOCOL_QQ:
-				impp = new Impp("qq", handle);
-				break;
-			case Im.PROTOCOL_GOOGLE_TALK:
-				impp = new Impp("google-talk", handle);
-				break;
-			case Im.PROTOCOL_ICQ:
-				impp = Impp.icq(handle);
-				break;
-			case Im.PROTOCOL_JABBER:
-				impp = Impp.xmpp(handle);
+	protected void populateIMPP(Contact c, ContentValues row) {
+		String handle = row.getAsString(Im.DATA);
+		
+		Impp impp = null;
+		switch (getInt(row, Im.PROTOCOL)) {
+		case Im.PROTOCOL_AIM:
+			impp = Impp.aim(handle);
+			break;
+		case Im.PROTOCOL_MSN:
+			impp = Impp.msn(handle);
+			break;
+		case Im.PROTOCOL_YAHOO:
+			impp = Impp.yahoo(handle);
+			break;
+		case Im.PROTOCOL_SKYPE:
+			impp = Impp.skype(handle);
+			break;
+		case Im.PROTOCOL_QQ:
+			impp = new Impp("qq", handle);
+			break;
+		case Im.PROTOCOL_GOOGLE_TALK:
+			impp = new Impp("google-talk", handle);
+			break;
+		case Im.PROTOCOL_ICQ:
+			impp = Impp.icq(handle);
+			break;
+		case Im.PROTOCOL_JABBER:
+			impp = Impp.xmpp(handle);
+			break;
+		case Im.PROTOCOL_NETMEETING:
+			impp = new Impp("netmeeting", handle);
+			break;
+		case Im.PROTOCOL_CUSTOM:
+			impp = new Impp(row.getAsString(Im.CUSTOM_PROTOCOL), handle);
+		}
+		
+		if (impp != null) {
+			switch (getInt(row, Im.TYPE)) {
+			case Im.TYPE_HOME:
+				impp.addType(ImppType.HOME);
 				break;
-			case Im.PROTOCOL_NETMEETING:
-				impp = new Impp("netmeeting", handle);
+			case Im.TYPE_WORK:
+				impp.addType(ImppType.WORK);
 				break;
-			case Im.PROTOCOL_CUSTOM:
-				impp = new Impp(cursor.getString(4), handle);
-			}
-			
-			if (impp != null) {
-				switch (cursor.getInt(1)) {
-				case Im.TYPE_HOME:
-					impp.addType(ImppType.HOME);
-					break;
-				case Im.TYPE_WORK:
-					impp.addType(ImppType.WORK);
-					break;
-				case Im.TYPE_CUSTOM:
-					String customType = cursor.getString(2);
-					if (!StringUtils.isEmpty(customType))
-						impp.addType(ImppType.get(labelToXName(customType)));
-				}
-				c.getImpps().add(impp);
+			case Im.TYPE_CUSTOM:
+				String customType = row.getAsString(Im.LABEL);
+				if (!StringUtils.isEmpty(customType))
+					impp.addType(ImppType.get(labelToXName(customType)));
 			}
+			c.getImpps().add(impp);
 		}
 	}
 
-	protected void populateNickname(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { Nickname.NAME },
-				Nickname.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Nickname.CONTENT_ITEM_TYPE }, null);
-		if (cursor != null && cursor.moveToNext())
-			c.setNickName(cursor.getString(0));
-	}
-	
-	protected void populateNote(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { Note.NOTE },
-				Note.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Note.CONTENT_ITEM_TYPE }, null);
-		if (cursor != null && cursor.moveToNext())
-			c.setNote(cursor.getString(0));
-	}
-	
-	protected void populatePostalAddresses(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] {
-				/* 0 */ StructuredPostal.FORMATTED_ADDRESS, StructuredPostal.TYPE, StructuredPostal.LABEL,
-				/* 3 */ StructuredPostal.STREET, StructuredPostal.POBOX, StructuredPostal.NEIGHBORHOOD,
-				/* 6 */ StructuredPostal.CITY, StructuredPostal.REGION, StructuredPostal.POSTCODE,
-				/* 9 */ StructuredPostal.COUNTRY
-			}, StructuredPostal.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-			new String[] { String.valueOf(c.getLocalID()), StructuredPostal.CONTENT_ITEM_TYPE }, null);
-		while (cursor != null && cursor.moveToNext()) {
-			Address address = new Address();
-	
-			address.setLabel(cursor.getString(0));
-			switch (cursor.getInt(1)) {
-			case StructuredPostal.TYPE_HOME:
-				address.addType(AddressType.HOME);
-				break;
-			case StructuredPostal.TYPE_WORK:
-				address.addType(AddressType.WORK);
-				break;
-			case StructuredPostal.TYPE_CUSTOM:
-				String customType = cursor.getString(2);
-				if (!StringUtils.isEmpty(customType))
-					address.addType(AddressType.get(labelToXName(customType)));
-				break;
-			}
-			address.setStreetAddress(cursor.getString(3));
-			address.setPoBox(cursor.getString(4));
-			address.setExtendedAddress(cursor.getString(5));
-			address.setLocality(cursor.getString(6));
-			address.setRegion(cursor.getString(7));
-			address.setPostalCode(cursor.getString(8));
-			address.setCountry(cursor.getString(9));
-			c.getAddresses().add(address);
+	protected void populateNickname(Contact c, ContentValues row) {
+		c.setNickName(row.getAsString(Nickname.NAME));
+	}
+	
+	protected void populateNote(Contact c, ContentValues row) {
+		c.setNote(row.getAsString(Note.NOTE));
+	}
+	
+	protected void populatePostalAddress(Contact c, ContentValues row) {
+		Address address = new Address();
+
+		address.setLabel(row.getAsString(StructuredPostal.FORMATTED_ADDRESS));
+		switch (getInt(row, StructuredPostal.TYPE)) {
+		case StructuredPostal.TYPE_HOME:
+			address.addType(AddressType.HOME);
+			break;
+		case StructuredPostal.TYPE_WORK:
+			address.addType(AddressType.WORK);
+			break;
+		case StructuredPostal.TYPE_CUSTOM:
+			String customType = row.getAsString(StructuredPostal.LABEL);
+			if (!StringUtils.isEmpty(customType))
+				address.addType(AddressType.get(labelToXName(customType)));
+			break;
 		}
+		address.setStreetAddress(row.getAsString(StructuredPostal.STREET));
+		address.setPoBox(row.getAsString(StructuredPostal.POBOX));
+		address.setExtendedAddress(row.getAsString(StructuredPostal.NEIGHBORHOOD));
+		address.setLocality(row.getAsString(StructuredPostal.CITY));
+		address.setRegion(row.getAsString(StructuredPostal.REGION));
+		address.setPostalCode(row.getAsString(StructuredPostal.POSTCODE));
+		address.setCountry(row.getAsString(StructuredPostal.COUNTRY));
+		c.getAddresses().add(address);
 	}
 	
-	protected void populateCategories(Contact c) throws RemoteException {
-		@Cleanup Cursor cursorMemberships = providerClient.query(dataURI(),
-				new String[] { GroupMembership.GROUP_ROW_ID, GroupMembership.GROUP_SOURCE_ID },
-				GroupMembership.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), GroupMembership.CONTENT_ITEM_TYPE }, null);
-		List<String> categories = c.getCategories();
-		while (cursorMemberships != null && cursorMemberships.moveToNext()) {
-			long rowID = cursorMemberships.getLong(0);
-			String sourceID = cursorMemberships.getString(1);
-
-			// either a row ID or a source ID must be available
-			String where, whereArg;
-			if (sourceID == null) {
-				where = Groups._ID + "=?";
-				whereArg = String.valueOf(rowID);
-			} else {
-				where = Groups.SOURCE_ID + "=?";
-				whereArg = sourceID;
-			}
-			where += " AND " + Groups.DELETED + "=0";		// ignore deleted groups
-			Log.d(TAG, "Populating group from " + where + " " + whereArg);
+	protected void populateCategory(Contact c, ContentValues row) throws RemoteException {
+		Long rowID = row.getAsLong(GroupMembership.GROUP_ROW_ID);
+		String sourceID = row.getAsString(GroupMembership.GROUP_SOURCE_ID);
+
+		// either a row ID or a source ID must be available
+		String where, whereArg;
+		if (sourceID == null) {
+			where = Groups._ID + "=?";
+			whereArg = String.valueOf(rowID);
+		} else {
+			where = Groups.SOURCE_ID + "=?";
+			whereArg = sourceID;
+		}
+		where += " AND " + Groups.DELETED + "=0";		// ignore deleted groups
+		Log.d(TAG, "Populating group from " + where + " " + whereArg);
+		
+		// fetch group
+		@Cleanup Cursor cursorGroups = providerClient.query(Groups.CONTENT_URI,
+			new String[] { Groups.TITLE },
+			where, new String[] { whereArg }, null
+		);
+		if (cursorGroups != null && cursorGroups.moveToNext()) {
+			String title = cursorGroups.getString(0);
 			
-			// fetch group
-			@Cleanup Cursor cursorGroups = providerClient.query(Groups.CONTENT_URI,
-				new String[] { Groups.TITLE },
-				where, new String[] { whereArg }, null
-			);
-			if (cursorGroups != null && cursorGroups.moveToNext()) {
-				String title = cursorGroups.getString(0);
+			if (sourceID == null) {		// Group wasn't created by DAVdroid
+				// SOURCE_ID IS NULL <=> _ID IS NOT NULL
+				Log.d(TAG, "Setting SOURCE_ID of non-DAVdroid group to title: " + title);
 				
-				if (sourceID == null) {		// Group wasn't created by DAVdroid
-					// SOURCE_ID IS NULL <=> _ID IS NOT NULL
-					Log.d(TAG, "Setting SOURCE_ID of non-DAVdroid group to title: " + title);
-					
-					ContentValues v = new ContentValues(1);
-					v.put(Groups.SOURCE_ID, title);
-					v.put(Groups.GROUP_IS_READ_ONLY, 0);
-					v.put(Groups.GROUP_VISIBLE, 1);
-					providerClient.update(syncAdapterURI(Groups.CONTENT_URI), v, Groups._ID + "=?", new String[] { String.valueOf(rowID) });
-					
-					sourceID = title;
-	 			}
+				ContentValues v = new ContentValues(1);
+				v.put(Groups.SOURCE_ID, title);
+				v.put(Groups.GROUP_IS_READ_ONLY, 0);
+				v.put(Groups.GROUP_VISIBLE, 1);
+				providerClient.update(syncAdapterURI(Groups.CONTENT_URI), v, Groups._ID + "=?", new String[] { String.valueOf(rowID) });
 				
-				// add group to CATEGORIES
-				if (sourceID != null)
-					categories.add(sourceID);
-			} else
-				Log.d(TAG, "Group not found (maybe deleted)");
-		}
+				sourceID = title;
+ 			}
+			
+			// add group to CATEGORIES
+			if (sourceID != null)
+				c.getCategories().add(sourceID);
+		} else
+			Log.d(TAG, "Group not found (maybe deleted)");
 	}
 	
-	protected void populateURLs(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { Website.URL },
-				Website.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), Website.CONTENT_ITEM_TYPE }, null);
-		while (cursor != null && cursor.moveToNext())
-			c.getURLs().add(cursor.getString(0));
+	protected void populateURL(Contact c, ContentValues row) {
+		c.getURLs().add(row.getAsString(Website.URL));
 	}
 	
-	protected void populateEvents(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(), new String[] { CommonDataKinds.Event.TYPE, CommonDataKinds.Event.START_DATE },
-				Photo.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), CommonDataKinds.Event.CONTENT_ITEM_TYPE }, null);
-		while (cursor != null && cursor.moveToNext()) {
-			SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
-			try {
-				Date date = formatter.parse(cursor.getString(1));
-				switch (cursor.getInt(0)) {
-				case CommonDataKinds.Event.TYPE_ANNIVERSARY:
-					c.setAnniversary(new Anniversary(date));
-					break;
-				case CommonDataKinds.Event.TYPE_BIRTHDAY:
-					c.setBirthDay(new Birthday(date));
-					break;
-				}
-			} catch (ParseException e) {
-				Log.w(TAG, "Couldn't parse local birthday/anniversary date", e);
+	protected void populateEvent(Contact c, ContentValues row) {
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+		try {
+			Date date = formatter.parse(row.getAsString(CommonDataKinds.Event.START_DATE));
+			switch (getInt(row, CommonDataKinds.Event.TYPE)) {
+			case CommonDataKinds.Event.TYPE_ANNIVERSARY:
+				c.setAnniversary(new Anniversary(date));
+				break;
+			case CommonDataKinds.Event.TYPE_BIRTHDAY:
+				c.setBirthDay(new Birthday(date));
+				break;
 			}
+		} catch (ParseException e) {
+			Log.w(TAG, "Couldn't parse local birthday/anniversary date", e);
 		}
 	}
 	
-	protected void populateSipAddress(Contact c) throws RemoteException {
-		@Cleanup Cursor cursor = providerClient.query(dataURI(),
-				new String[] { SipAddress.SIP_ADDRESS, SipAddress.TYPE, SipAddress.LABEL },
-				SipAddress.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
-				new String[] { String.valueOf(c.getLocalID()), SipAddress.CONTENT_ITEM_TYPE }, null);
-		if (cursor != null && cursor.moveToNext()) {
-			Impp impp = new Impp("sip:" + cursor.getString(0));
-			switch (cursor.getInt(1)) {
-			case SipAddress.TYPE_HOME:
-				impp.addType(ImppType.HOME);
-				break;
-			case SipAddress.TYPE_WORK:
-				impp.addType(ImppType.WORK);
-				break;
-			case SipAddress.TYPE_CUSTOM:
-				String customType = cursor.getString(2);
-				if (!StringUtils.isEmpty(customType))
-					impp.addType(ImppType.get(labelToXName(customType)));
-			}
-			c.getImpps().add(impp);
+	protected void populateSipAddress(Contact c, ContentValues row) {
+		Impp impp = new Impp("sip:" + row.getAsString(SipAddress.SIP_ADDRESS));
+		switch (getInt(row, SipAddress.TYPE)) {
+		case SipAddress.TYPE_HOME:
+			impp.addType(ImppType.HOME);
+			break;
+		case SipAddress.TYPE_WORK:
+			impp.addType(ImppType.WORK);
+			break;
+		case SipAddress.TYPE_CUSTOM:
+			String customType = row.getAsString(SipAddress.LABEL);
+			if (!StringUtils.isEmpty(customType))
+				impp.addType(ImppType.get(labelToXName(customType)));
 		}
+		c.getImpps().add(impp);
 	}
 
 	
@@ -665,6 +669,40 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 				.withSelection(Data.RAW_CONTACT_ID + "=?",
 				new String[] { String.valueOf(resource.getLocalID()) }).build());
 	}
+	
+	@Override
+	protected void updateDataRows(Contact localContact, Resource remoteContact) throws LocalStorageException {
+		diffDataRows(dataURI(), Data.RAW_CONTACT_ID, localContact.getLocalID(),
+				buildDataRows(remoteContact, localContact.getLocalID()));
+	}
+	
+	@Override
+	protected boolean dataRowEquals(ContentValues stored, ContentValues wanted) {
+		String mimeType = wanted.getAsString(Data.MIMETYPE);
+		if (Photo.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			// the provider stores a scaled-down photo, so only the digest of the original photo can be compared
+			wanted = new ContentValues(wanted);
+			wanted.remove(Photo.PHOTO);
+		} else if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+			// the provider calculates the display name from the name parts and vice versa, if not set
+			wanted = new ContentValues(wanted);
+			if (wanted.get(StructuredName.DISPLAY_NAME) == null)
+				wanted.remove(StructuredName.DISPLAY_NAME);
+			boolean noParts = true;
+			for (String part : STRUCTURED_NAME_PARTS)
+				noParts &= wanted.get(part) == null;
+			if (noParts)
+				for (String part : STRUCTURED_NAME_PARTS)
+					wanted.remove(part);
+		}
+		return super.dataRowEquals(stored, wanted);
+	}
+	
+	@Override
+	protected boolean dataRowUpdatable(ContentValues stored, ContentValues wanted) {
+		// the content provider doesn't allow to change the MIME type of a data row
+		return StringUtils.equals(stored.getAsString(Data.MIMETYPE), wanted.getAsString(Data.MIMETYPE));
+	}
 
 
 	protected Builder buildStructuredName(Builder builder, Contact contact) {
@@ -788,7 +826,8 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	protected Builder buildPhoto(Builder builder, byte[] photo) {
 		return builder
 			.withValue(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE)
-			.withValue(Photo.PHOTO, photo);
+			.withValue(Photo.PHOTO, photo)
+			.withValue(Photo.SYNC1, DigestUtils.sha1(photo));	// for detecting changed photos, see dataRowEquals()
 	}
 	
 	protected Builder buildOrganization(Builder builder, Contact contact) {
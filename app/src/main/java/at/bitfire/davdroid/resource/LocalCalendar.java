@@ -17,7 +17,6 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Build;
 import android.os.RemoteException;
@@ -73,7 +72,13 @@ public class LocalCalendar extends LocalCollection<Event> {
 	@Getter protected long id;
 	@Getter protected String url;
 	
-	protected static String COLLECTION_COLUMN_CTAG = Calendars.CAL_SYNC1;
+	// start of the sync window (ms since epoch), see setSyncWindow(); null if all events are synchronized
+	protected Long syncWindowStart;
+	protected boolean keepOutsideSyncWindow = true;
+	
+	protected static String
+		COLLECTION_COLUMN_CTAG = Calendars.CAL_SYNC1,
+		COLLECTION_COLUMN_SYNC_TOKEN = Calendars.CAL_SYNC2;
 
 	
 	/* database fields */
@@ -90,6 +95,7 @@ public class LocalCalendar extends LocalCollection<Event> {
 	protected String entryColumnID()			{ return Events._ID; }
 	protected String entryColumnRemoteName()	{ return Events._SYNC_ID; }
 	protected String entryColumnETag()			{ return Events.SYNC_DATA1; }
+	protected String entryColumnContentDigest()	{ return Events.SYNC_DATA3; }
 
 	protected String entryColumnDirty()			{ return Events.DIRTY; }
 	protected String entryColumnDeleted()		{ return Events.DELETED; }
@@ -199,30 +205,81 @@ public class LocalCalendar extends LocalCollection<Event> {
 			throw new LocalStorageException(e);
 		}
 	}
+	
+	@Override
+	public String getSyncToken() throws LocalStorageException {
+		try {
+			@Cleanup Cursor c = providerClient.query(ContentUris.withAppendedId(calendarsURI(), id),
+					new String[] { COLLECTION_COLUMN_SYNC_TOKEN }, null, null, null);
+			if (c.moveToFirst()) {
+				return c.getString(0);
+			} else
+				throw new LocalStorageException("Couldn't query calendar sync-token");
+		} catch(RemoteException e) {
+			throw new LocalStorageException(e);
+		}
+	}
+	
+	@Override
+	public void setSyncToken(String syncToken) throws LocalStorageException {
+		ContentValues values = new ContentValues(1);
+		values.put(COLLECTION_COLUMN_SYNC_TOKEN, syncToken);
+		try {
+			providerClient.update(ContentUris.withAppendedId(calendarsURI(), id), values, null, null);
+		} catch(RemoteException e) {
+			throw new LocalStorageException(e);
+		}
+	}
 
 
+	/**
+	 * Sets the sync window of the calendar (see CalDavCalendar.setSyncWindowStart()).
+	 * @param start			only events which end after this date are synchronized (null = all events)
+	 * @param keepOutside	true: events which have left the sync window are kept locally;
+	 * 						false: they are removed locally (see deleteExpired())
+	 */
+	public void setSyncWindow(java.util.Date start, boolean keepOutside) {
+		syncWindowStart = (start != null) ? start.getTime() : null;
+		keepOutsideSyncWindow = keepOutside;
+	}
+	
+	
 	/* create/update/delete */
 	
 	public Event newResource(long localID, String resourceName, String eTag) {
 		return new Event(localID, resourceName, eTag);
 	}
 	
-	public void deleteAllExceptRemoteNames(Resource[] remoteResources) {
-		String where;
-		
-		if (remoteResources.length != 0) {
-			List<String> sqlFileNames = new LinkedList<String>();
-			for (Resource res : remoteResources)
-				sqlFileNames.add(DatabaseUtils.sqlEscapeString(res.getName()));
-			where = entryColumnRemoteName() + " NOT IN (" + StringUtils.join(sqlFileNames, ",") + ")";
-		} else
-			where = entryColumnRemoteName() + " IS NOT NULL";
-		
-		Builder builder = ContentProviderOperation.newDelete(entriesURI())
-				.withSelection(entryColumnParentID() + "=? AND (" + where + ")", new String[] { String.valueOf(id) });
-		pendingOperations.add(builder
-				.withYieldAllowed(true)
-				.build());
+	@Override
+	public void deleteAllExceptRemoteNames() throws LocalStorageException {
+		if (syncWindowStart != null && remoteNameIndex != null)
+			// events outside the sync window haven't been listed, but that doesn't mean they have been removed remotely;
+			// if they shouldn't be kept, deleteExpired() removes them (but only if they're not dirty)
+			try {
+				@Cleanup Cursor cursor = providerClient.query(entriesURI(),
+						new String[] { entryColumnRemoteName() },
+						whereOutsideSyncWindow() + " AND " + entryColumnRemoteName() + " IS NOT NULL", null, null);
+				while (cursor != null && cursor.moveToNext())
+					remoteNameIndex.markRemotelyPresent(cursor.getString(0));
+			} catch(RemoteException e) {
+				throw new LocalStorageException(e);
+			}
+		super.deleteAllExceptRemoteNames();
+	}
+	
+	@Override
+	public void deleteExpired() {
+		if (syncWindowStart != null && !keepOutsideSyncWindow)
+			// remove (non-dirty) events which have left the sync window; only locally
+			pendingOperations.add(ContentProviderOperation.newDelete(entriesURI())
+					.withSelection(whereOutsideSyncWindow() + " AND " + entryColumnDirty() + "=0", null)
+					.withYieldAllowed(true)
+					.build());
+	}
+	
+	/** selection for the events of this calendar which end before the sync window (LAST_DATE is NULL for endless recurrences) */
+	private String whereOutsideSyncWindow() {
+		return Events.CALENDAR_ID + "=" + id + " AND " + Events.LAST_DATE + "<=" + syncWindowStart;
 	}
 	
 	
@@ -519,9 +576,17 @@ public class LocalCalendar extends LocalCollection<Event> {
 	protected void addDataRows(Resource resource, long localID, int backrefIdx) {
 		Event event = (Event)resource;
 		for (Attendee attendee : event.getAttendees())
-			pendingOperations.add(buildAttendee(newDataInsertBuilder(Attendees.CONTENT_URI, Attendees.EVENT_ID, localID, backrefIdx), attendee).build());
+			queueOperation(buildAttendee(newDataInsertBuilder(Attendees.CONTENT_URI, Attendees.EVENT_ID, localID, backrefIdx), attendee));
 		for (VAlarm alarm : event.getAlarms())
-			pendingOperations.add(buildReminder(newDataInsertBuilder(Reminders.CONTENT_URI, Reminders.EVENT_ID, localID, backrefIdx), alarm).build());
+			queueOperation(buildReminder(newDataInsertBuilder(Reminders.CONTENT_URI, Reminders.EVENT_ID, localID, backrefIdx), alarm));
+	}
+	
+	@Override
+	protected void updateDataRows(Event localEvent, Resource remoteEvent) throws LocalStorageException {
+		long localID = localEvent.getLocalID();
+		List<ContentProviderOperation> dataRows = buildDataRows(remoteEvent, localID);
+		diffDataRows(syncAdapterURI(Attendees.CONTENT_URI), Attendees.EVENT_ID, localID, dataRows);
+		diffDataRows(syncAdapterURI(Reminders.CONTENT_URI), Reminders.EVENT_ID, localID, dataRows);
 	}
 	
 	@Override
@@ -11,16 +11,34 @@ import android.accounts.Account;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderOperation.Builder;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.provider.BaseColumns;
 import android.provider.CalendarContract;
 import android.util.Log;
 
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import lombok.Cleanup;
 
@@ -37,6 +55,26 @@ public abstract class LocalCollection<T extends Resource> {
 	protected Account account;
 	protected ContentProviderClient providerClient;
 	protected ArrayList<ContentProviderOperation> pendingOperations = new ArrayList<ContentProviderOperation>();
+	
+	/* back references of enqueued operations (see newDataInsertBuilder()), required to
+	   rebuild the operations when a batch has to be split */
+	private Map<Builder, BackReference> unqueuedBackReferences = new IdentityHashMap<Builder, BackReference>();
+	private Map<Integer, BackReference> pendingBackReferences = new HashMap<Integer, BackReference>();
+	
+	// budget for commitIfFull(): max. number of operations / bytes (as sent to the content provider) per batch
+	protected static final int
+		MAX_BATCH_OPERATIONS = 250,
+		MAX_BATCH_BYTES = 256*1024;
+	private int measuredOperations, pendingBytes;
+	
+	// number of operations (from the beginning of pendingOperations) which have been applied by the current commit()
+	private int appliedOperations;
+	
+	// max. number of entries which are deleted by one operation (see deleteAllExceptRemoteNames())
+	protected static final int MAX_DELETE_IDS = 500;
+	
+	/** remote file name → (local ID, ETag) index, see loadRemoteNameIndex() */
+	protected RemoteNameIndex remoteNameIndex;
 
 	
 	// database fields
@@ -58,6 +96,8 @@ public abstract class LocalCollection<T extends Resource> {
 	abstract protected String entryColumnRemoteName();
 	/** column name of an entry's last ETag on the WebDAV server; null if entry hasn't been uploaded yet */
 	abstract protected String entryColumnETag();
+	/** column name of the digest of an entry's last downloaded entity (see Resource.getContentDigest()); null if unknown */
+	abstract protected String entryColumnContentDigest();
 	
 	/** column name of an entry's "dirty" flag (managed by content provider) */
 	abstract protected String entryColumnDirty();
@@ -82,6 +122,10 @@ public abstract class LocalCollection<T extends Resource> {
 	abstract public String getCTag() throws LocalStorageException;
 	/** sets the CTag of the collection */
 	abstract public void setCTag(String cTag) throws LocalStorageException;
+	/** gets the sync-token (RFC 6578) of the last synchronization; null if there is none */
+	abstract public String getSyncToken() throws LocalStorageException;
+	/** sets the sync-token (RFC 6578) of the collection */
+	abstract public void setSyncToken(String syncToken) throws LocalStorageException;
 
 	
 	// content provider (= database) querying
@@ -89,6 +133,7 @@ public abstract class LocalCollection<T extends Resource> {
 	/**
 	 * Finds new resources (resources which haven't been uploaded yet).
 	 * New resources are 1) dirty, and 2) don't have an ETag yet.
+	 * Generates UIDs and remote file names for the new resources and stores them in batches.
 	 * 
 	 * @return IDs of new resources
 	 * @throws LocalStorageException when the content provider couldn't be queried
@@ -109,16 +154,20 @@ public abstract class LocalCollection<T extends Resource> {
 				long id = cursor.getLong(0);
 				
 				// new record: generate UID + remote file name so that we can upload
-				T resource = findById(id, false);
+				T resource = newResource(id, null, null);
 				resource.initialize();
-				// write generated UID + remote file name into database
-				ContentValues values = new ContentValues(2);
-				values.put(entryColumnUID(), resource.getUid());
-				values.put(entryColumnRemoteName(), resource.getName());
-				providerClient.update(ContentUris.withAppendedId(entriesURI(), id), values, null, null);
+				// enqueue writing generated UID + remote file name into database
+				pendingOperations.add(ContentProviderOperation
+						.newUpdate(ContentUris.withAppendedId(entriesURI(), id))
+						.withValue(entryColumnUID(), resource.getUid())
+						.withValue(entryColumnRemoteName(), resource.getName())
+						.withYieldAllowed(true)
+						.build());
+				commitIfFull();
 				
 				fresh[idx] = id;
 			}
+			commit();
 			return fresh;
 		} catch(RemoteException ex) {
 			throw new LocalStorageException(ex);
@@ -204,6 +253,32 @@ public abstract class LocalCollection<T extends Resource> {
 		}
 	}
 	
+	/**
+	 * Finds multiple resources by ID. Resources which don't exist (anymore) are skipped.
+	 * @param localIDs	IDs of the resources
+	 * @param populate	true: populates all data fields (see populate(Resource[]));
+	 * 					false: only remote file name and ETag are populated
+	 * @return found resources
+	 * @throws LocalStorageException when the content provider couldn't be queried
+	 */
+	public List<T> findById(long[] localIDs, boolean populate) throws LocalStorageException {
+		List<T> resources = new LinkedList<T>();
+		if (localIDs.length == 0)
+			return resources;
+		try {
+			@Cleanup Cursor cursor = providerClient.query(entriesURI(),
+					new String[] { entryColumnID(), entryColumnRemoteName(), entryColumnETag() },
+					entryColumnID() + " IN (" + StringUtils.join(ArrayUtils.toObject(localIDs), ",") + ")", null, null);
+			while (cursor != null && cursor.moveToNext())
+				resources.add(newResource(cursor.getLong(0), cursor.getString(1), cursor.getString(2)));
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+		if (populate)
+			populate(resources.toArray(new Resource[resources.size()]));
+		return resources;
+	}
+	
 	/**
 	 * Finds a specific resource by remote file name.
 	 * @param localID	remote file name of the resource
@@ -230,8 +305,43 @@ public abstract class LocalCollection<T extends Resource> {
 		}
 	}
 
+	/**
+	 * Loads remote file name, local ID and ETag of all entries with a remote file name
+	 * in one query and keeps them as in-memory index, which will be used by
+	 * updateByRemoteName() and deleteAllExceptRemoteNames() from then on.
+	 * @return index of all entries with a remote file name
+	 * @throws LocalStorageException when the content provider couldn't be queried
+	 */
+	public RemoteNameIndex loadRemoteNameIndex() throws LocalStorageException {
+		String where = entryColumnRemoteName() + " IS NOT NULL";
+		if (entryColumnParentID() != null)
+			where += " AND " + entryColumnParentID() + "=" + String.valueOf(getId());
+		try {
+			@Cleanup Cursor cursor = providerClient.query(entriesURI(),
+					new String[] { entryColumnID(), entryColumnRemoteName(), entryColumnETag(), entryColumnContentDigest(), entryColumnDirty() },
+					where, null, null);
+			if (cursor == null)
+				throw new LocalStorageException("Couldn't query remote file names");
+			
+			RemoteNameIndex index = new RemoteNameIndex(cursor.getCount());
+			while (cursor.moveToNext())
+				index.put(cursor.getString(1), cursor.getLong(0), cursor.getString(2), cursor.getString(3), cursor.getInt(4) != 0);
+			Log.d(TAG, "Loaded remote name index with " + index.size() + " entries");
+			
+			return remoteNameIndex = index;
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+	}
+
 	/** populates all data fields from the content provider */
 	public abstract void populate(Resource record) throws LocalStorageException;
+	
+	/** populates all data fields of multiple resources; collections which can read them more efficiently than one by one should override this */
+	public void populate(Resource[] records) throws LocalStorageException {
+		for (Resource record : records)
+			populate(record);
+	}
 
 	
 	// create/update/delete
@@ -249,6 +359,7 @@ public abstract class LocalCollection<T extends Resource> {
 		int idx = pendingOperations.size();
 		pendingOperations.add(
 				buildEntry(ContentProviderOperation.newInsert(entriesURI()), resource)
+				.withValue(entryColumnContentDigest(), resource.getContentDigest())
 				.withYieldAllowed(true)
 				.build());
 		
@@ -256,17 +367,33 @@ public abstract class LocalCollection<T extends Resource> {
 	}
 	
 	/** Enqueues updating an existing resource in the local collection. The resource will be found by 
-	 * the remote file name and all data will be updated. Requires commit(). */
+	 * the remote file name and all data will be updated (see updateDataRows()). If the content digest of the
+	 * remote resource matches the stored one (only the ETag has changed), only the ETag will be updated, unless
+	 * the local entry is dirty: then the local changes are overwritten like by any other remote change. Requires commit(). */
 	public void updateByRemoteName(Resource remoteResource) throws LocalStorageException {
-		T localResource = findByRemoteName(remoteResource.getName(), false);
+		T localResource;
+		RemoteNameIndex.Entry entry = (remoteNameIndex != null) ? remoteNameIndex.get(remoteResource.getName()) : null;
+		if (entry != null) {
+			if (!entry.isDirty() && entry.getContentDigest() != null && entry.getContentDigest().equals(remoteResource.getContentDigest())) {
+				Log.d(TAG, "Content of " + remoteResource.getName() + " hasn't changed, only updating ETag");
+				pendingOperations.add(ContentProviderOperation
+						.newUpdate(ContentUris.withAppendedId(entriesURI(), entry.getLocalID()))
+						.withValue(entryColumnETag(), remoteResource.getETag())
+						.withYieldAllowed(true)
+						.build());
+				return;
+			}
+			localResource = newResource(entry.getLocalID(), remoteResource.getName(), entry.getETag());
+		} else
+			localResource = findByRemoteName(remoteResource.getName(), false);
 		pendingOperations.add(
 				buildEntry(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(entriesURI(), localResource.getLocalID())), remoteResource)
 				.withValue(entryColumnETag(), remoteResource.getETag())
+				.withValue(entryColumnContentDigest(), remoteResource.getContentDigest())
 				.withYieldAllowed(true)
 				.build());
 		
-		removeDataRows(localResource);
-		addDataRows(remoteResource, localResource.getLocalID(), -1);
+		updateDataRows(localResource, remoteResource);
 	}
 
 	/** Enqueues deleting a resource from the local collection. Requires commit(). */
@@ -277,53 +404,184 @@ public abstract class LocalCollection<T extends Resource> {
 				.build());
 	}
 
+	/** Enqueues deleting a resource by its remote file name (if it exists) from the local collection. Requires commit(). */
+	public void deleteByRemoteName(String remoteName) {
+		String where = entryColumnRemoteName() + "=?";
+		if (entryColumnParentID() != null)
+			where += " AND " + entryColumnParentID() + "=" + String.valueOf(getId());
+		pendingOperations.add(ContentProviderOperation
+				.newDelete(entriesURI())
+				.withSelection(where, new String[] { remoteName })
+				.withYieldAllowed(true)
+				.build());
+	}
+
 	/**
-	 * Enqueues deleting all resources except the give ones from the local collection. Requires commit().
-	 * @param remoteResources resources with these remote file names will be kept
+	 * Enqueues deleting all resources except those which are present remotely from the local collection. Requires commit().
+	 * Deletes all entries of the remote name index (see loadRemoteNameIndex()) which haven't been marked
+	 * by RemoteNameIndex.markRemotelyPresent() while processing the remote resource listing.
 	 */
-	public abstract void deleteAllExceptRemoteNames(Resource[] remoteResources);
-	
-	/** Updates the locally-known ETag of a resource. */
-	public void updateETag(Resource res, String eTag) throws LocalStorageException {
-		Log.d(TAG, "Setting ETag of local resource " + res + " to " + eTag);
+	public void deleteAllExceptRemoteNames() throws LocalStorageException {
+		if (remoteNameIndex == null)
+			// nothing could have been marked, so everything would be deleted
+			throw new IllegalStateException("Remote name index has not been loaded");
 		
-		ContentValues values = new ContentValues(1);
-		values.put(entryColumnETag(), eTag);
-		try {
-			providerClient.update(ContentUris.withAppendedId(entriesURI(), res.getLocalID()), values, null, new String[] {});
-		} catch (RemoteException e) {
-			throw new LocalStorageException(e);
+		List<Long> removedIDs = new ArrayList<Long>();
+		for (Map.Entry<String, RemoteNameIndex.Entry> entry : remoteNameIndex.entrySet())
+			if (!entry.getValue().isRemotelyPresent())
+				removedIDs.add(entry.getValue().getLocalID());
+		
+		// delete by ID in batches so that the selection stays small
+		for (int start = 0; start < removedIDs.size(); start += MAX_DELETE_IDS) {
+			List<Long> batch = removedIDs.subList(start, Math.min(start + MAX_DELETE_IDS, removedIDs.size()));
+			pendingOperations.add(ContentProviderOperation
+					.newDelete(entriesURI())
+					.withSelection(entryColumnID() + " IN (" + StringUtils.join(batch, ",") + ")", null)
+					.withYieldAllowed(true)
+					.build());
 		}
 	}
 	
+	/**
+	 * Enqueues deleting local entries which shouldn't be kept anymore, independently of the remote
+	 * listing (for instance, events which have left the sync window). Requires commit().
+	 */
+	public void deleteExpired() throws LocalStorageException {
+	}
+	
 	/** Enqueues removing the dirty flag from a locally-stored resource. Requires commit(). */
 	public void clearDirty(Resource resource) {
-		pendingOperations.add(ContentProviderOperation
+		clearDirty(resource, null);
+	}
+	
+	/**
+	 * Enqueues removing the dirty flag from an uploaded resource and setting its new ETag (if not null)
+	 * in one operation, so that both are applied together. Requires commit().
+	 */
+	public void clearDirty(Resource resource, String eTag) {
+		Builder builder = ContentProviderOperation
 				.newUpdate(ContentUris.withAppendedId(entriesURI(), resource.getLocalID()))
 				.withValue(entryColumnDirty(), 0)
-				.build());
+				// the remote entity is the uploaded one now, so the digest of the last download isn't valid anymore
+				.withValue(entryColumnContentDigest(), null)
+				.withYieldAllowed(true);
+		if (eTag != null) {
+			Log.d(TAG, "Setting ETag of local resource " + resource + " to " + eTag);
+			builder.withValue(entryColumnETag(), eTag);
+		}
+		pendingOperations.add(builder.build());
 	}
 
-	/** Commits enqueued operations to the content provider (for batch operations). */
+	/**
+	 * Commits enqueued operations to the content provider (for batch operations).
+	 * If the batch is too large for one binder transaction, it is split between two resources
+	 * (operations with withYieldAllowed) and the parts are applied one after another. If the
+	 * commit fails, the operations which haven't been applied remain enqueued; parts which
+	 * have already been applied are removed, so that they can't be applied twice. Applied
+	 * parts can't be rolled back, so callers shouldn't simply retry a failed commit.
+	 */
 	public void commit() throws LocalStorageException {
-		if (!pendingOperations.isEmpty())
+		if (!pendingOperations.isEmpty()) {
+			Log.d(TAG, "Committing " + pendingOperations.size() + " operations");
+			appliedOperations = 0;
+			try {
+				applyBatch(0, pendingOperations.size());
+			} finally {
+				removeAppliedOperations();
+			}
+		}
+	}
+	
+	/** removes pendingOperations[0, appliedOperations) and moves the back references of the others accordingly */
+	private void removeAppliedOperations() {
+		if (appliedOperations == pendingOperations.size()) {
+			pendingOperations.clear();
+			pendingBackReferences.clear();
+		} else if (appliedOperations > 0) {
+			pendingOperations.subList(0, appliedOperations).clear();
+			
+			// batches are only split between resources, so remaining operations don't refer to applied ones
+			Map<Integer, BackReference> backReferences = new HashMap<Integer, BackReference>();
+			for (Map.Entry<Integer, BackReference> entry : pendingBackReferences.entrySet())
+				if (entry.getKey() >= appliedOperations) {
+					BackReference backRef = entry.getValue();
+					backReferences.put(entry.getKey() - appliedOperations,
+						new BackReference(backRef.builder, backRef.column, backRef.index - appliedOperations));
+				}
+			pendingBackReferences = backReferences;
+		}
+		unqueuedBackReferences.clear();
+		appliedOperations = measuredOperations = pendingBytes = 0;
+	}
+	
+	/**
+	 * Commits enqueued operations when they have reached the budget (MAX_BATCH_OPERATIONS or MAX_BATCH_BYTES).
+	 * Must only be called between resources; call commit() at the end to commit the rest.
+	 */
+	public void commitIfFull() throws LocalStorageException {
+		if (measuredOperations < pendingOperations.size()) {
+			// measure only the operations which have been added since the last call, like they will be sent to the content provider
+			Parcel parcel = Parcel.obtain();
 			try {
-				Log.d(TAG, "Committing " + pendingOperations.size() + " operations");
-				providerClient.applyBatch(pendingOperations);
-				pendingOperations.clear();
-			} catch (RemoteException ex) {
-				throw new LocalStorageException(ex);
-			} catch(OperationApplicationException ex) {
-				throw new LocalStorageException(ex);
+				for (; measuredOperations < pendingOperations.size(); measuredOperations++)
+					pendingOperations.get(measuredOperations).writeToParcel(parcel, 0);
+				pendingBytes += parcel.dataSize();
+			} finally {
+				parcel.recycle();
 			}
+		}
+		
+		if (pendingOperations.size() >= MAX_BATCH_OPERATIONS || pendingBytes >= MAX_BATCH_BYTES)
+			commit();
+	}
+	
+	/** applies pendingOperations[start, end) as one batch, splits the batch if it's too large */
+	private void applyBatch(int start, int end) throws LocalStorageException {
+		ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(end - start);
+		for (int idx = start; idx < end; idx++) {
+			BackReference backRef = pendingBackReferences.get(idx);
+			if (backRef != null)
+				// back reference indices are relative to the batch; the enqueued operation may refer to
+				// an old position (before a failed commit has removed the operations which had already been applied)
+				batch.add(backRef.builder.withValueBackReference(backRef.column, backRef.index - start).build());
+			else
+				batch.add(pendingOperations.get(idx));
+		}
+		
+		try {
+			providerClient.applyBatch(batch);
+			appliedOperations = end;
+		} catch (RemoteException ex) {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1 && ex instanceof TransactionTooLargeException) {
+				// split batch at the resource boundary which is next to the middle
+				int split = -1;
+				for (int idx = start + 1; idx < end; idx++)
+					if (pendingOperations.get(idx).isYieldAllowed() &&
+						(split == -1 || Math.abs(idx - (start + end)/2) < Math.abs(split - (start + end)/2)))
+						split = idx;
+				if (split != -1) {
+					Log.i(TAG, "Batch of " + (end - start) + " operations too large, splitting");
+					applyBatch(start, split);
+					applyBatch(split, end);
+					return;
+				}
+			}
+			throw new LocalStorageException(ex);
+		} catch(OperationApplicationException ex) {
+			throw new LocalStorageException(ex);
+		}
 	}
 
 	
 	// helpers
 
 	protected void queueOperation(Builder builder) {
-		if (builder != null)
+		if (builder != null) {
+			BackReference backRef = unqueuedBackReferences.remove(builder);
+			if (backRef != null)
+				pendingBackReferences.put(pendingOperations.size(), backRef);
 			pendingOperations.add(builder.build());
+		}
 	}
 
 	/** Appends account type, name and CALLER_IS_SYNCADAPTER to an Uri. */
@@ -335,14 +593,152 @@ public abstract class LocalCollection<T extends Resource> {
 				.build();
 	}
 	
+	/**
+	 * Creates a builder for inserting a data row which belongs to the entry with the ID raw_ref_id, or
+	 * (if backrefIdx != -1) to the entry which is inserted by the pending operation at backrefIdx.
+	 * Builders with back reference have to be enqueued by queueOperation().
+	 */
 	protected Builder newDataInsertBuilder(Uri dataUri, String refFieldName, long raw_ref_id, Integer backrefIdx) {
 		Builder builder = ContentProviderOperation.newInsert(syncAdapterURI(dataUri));
-		if (backrefIdx != -1)
+		if (backrefIdx != -1) {
+			unqueuedBackReferences.put(builder, new BackReference(builder, refFieldName, backrefIdx));
 			return builder.withValueBackReference(refFieldName, backrefIdx);
-		else
+		} else
 			return builder.withValue(refFieldName, raw_ref_id);
 	}
 	
+	private static class BackReference {
+		final Builder builder;
+		final String column;
+		final int index;
+		
+		BackReference(Builder builder, String column, int index) {
+			this.builder = builder;
+			this.column = column;
+			this.index = index;
+		}
+	}
+	
+	/** reads a row into ContentValues (blobs like photos as byte[], all other columns as String) */
+	protected static ContentValues rowToValues(Cursor cursor) {
+		ContentValues row = new ContentValues(cursor.getColumnCount());
+		for (int i = 0; i < cursor.getColumnCount(); i++)
+			if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB)
+				row.put(cursor.getColumnName(i), cursor.getBlob(i));
+			else
+				row.put(cursor.getColumnName(i), cursor.getString(i));
+		return row;
+	}
+	
+	
+	// data row updates
+	
+	/**
+	 * Builds the insert operations for the data rows of a resource (see addDataRows()) without enqueueing them.
+	 * @param localID ID of the existing entry the rows belong to
+	 */
+	protected List<ContentProviderOperation> buildDataRows(Resource resource, long localID) {
+		int start = pendingOperations.size();
+		addDataRows(resource, localID, -1);
+		
+		List<ContentProviderOperation> added = pendingOperations.subList(start, pendingOperations.size());
+		List<ContentProviderOperation> dataRows = new ArrayList<ContentProviderOperation>(added);
+		added.clear();
+		return dataRows;
+	}
+	
+	/**
+	 * Enqueues only the changes between the stored rows of a data table and the data rows of a new resource version:
+	 * rows which are equal (see dataRowEquals()) are kept, changed rows are updated in place (if dataRowUpdatable()),
+	 * and the remaining rows are deleted or inserted. Requires commit().
+	 * 
+	 * @param dataUri		data table, like used by the insert operations (see newDataInsertBuilder())
+	 * @param entryColumn	column of the data table which references the entry
+	 * @param localID		ID of the entry
+	 * @param dataRows		insert operations of the new data rows (see buildDataRows()); only rows for dataUri are used
+	 */
+	protected void diffDataRows(Uri dataUri, String entryColumn, long localID, List<ContentProviderOperation> dataRows) throws LocalStorageException {
+		List<ContentValues> wanted = new LinkedList<ContentValues>();
+		// only the columns which are written by the builders are read (not the ones calculated by the content provider)
+		Set<String> columns = new HashSet<String>();
+		columns.add(BaseColumns._ID);
+		for (ContentProviderOperation row : dataRows)
+			if (dataUri.equals(row.getUri())) {
+				ContentValues values = row.resolveValueBackReferences(new ContentProviderResult[0], 0);
+				if (values != null) {
+					wanted.add(values);
+					for (Map.Entry<String, Object> value : values.valueSet())
+						columns.add(value.getKey());
+				}
+			}
+		
+		List<ContentValues> obsolete = new LinkedList<ContentValues>();
+		try {
+			@Cleanup Cursor cursor = providerClient.query(dataUri, columns.toArray(new String[columns.size()]), entryColumn + "=?",
+					new String[] { String.valueOf(localID) }, null);
+			while (cursor != null && cursor.moveToNext()) {
+				ContentValues stored = rowToValues(cursor);
+				boolean unchanged = false;
+				for (Iterator<ContentValues> iter = wanted.iterator(); !unchanged && iter.hasNext(); )
+					if (dataRowEquals(stored, iter.next())) {
+						iter.remove();
+						unchanged = true;
+					}
+				if (!unchanged)
+					obsolete.add(stored);
+			}
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+		
+		for (ContentValues stored : obsolete) {
+			Uri rowUri = ContentUris.withAppendedId(dataUri, stored.getAsLong(BaseColumns._ID));
+			
+			ContentValues replacement = null;
+			for (Iterator<ContentValues> iter = wanted.iterator(); replacement == null && iter.hasNext(); ) {
+				ContentValues row = iter.next();
+				if (dataRowUpdatable(stored, row)) {
+					iter.remove();
+					replacement = row;
+				}
+			}
+			
+			if (replacement != null)
+				pendingOperations.add(ContentProviderOperation.newUpdate(rowUri).withValues(replacement).build());
+			else
+				pendingOperations.add(ContentProviderOperation.newDelete(rowUri).build());
+		}
+		
+		for (ContentValues row : wanted)
+			pendingOperations.add(ContentProviderOperation.newInsert(dataUri).withValues(row).build());
+	}
+	
+	/**
+	 * Checks whether a stored data row already has all values of a wanted row (columns which are
+	 * not set by the wanted row, like columns calculated by the content provider, are ignored).
+	 */
+	protected boolean dataRowEquals(ContentValues stored, ContentValues wanted) {
+		for (Map.Entry<String, Object> value : wanted.valueSet()) {
+			Object storedValue = stored.get(value.getKey()),
+				   wantedValue = value.getValue();
+			if (wantedValue instanceof byte[]) {
+				if (!(storedValue instanceof byte[] && Arrays.equals((byte[])storedValue, (byte[])wantedValue)))
+					return false;
+			} else {
+				if (wantedValue instanceof Boolean)
+					wantedValue = (Boolean)wantedValue ? 1 : 0;
+				if (!ObjectUtils.equals(ObjectUtils.toString(storedValue, null), ObjectUtils.toString(wantedValue, null)))
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/** Checks whether a stored data row may be updated to the values of another row (instead of deleting/inserting). */
+	protected boolean dataRowUpdatable(ContentValues stored, ContentValues wanted) {
+		return true;
+	}
+	
 	
 	// content builders
 
@@ -359,4 +755,13 @@ public abstract class LocalCollection<T extends Resource> {
 	
 	/** Enqueues removing all extra data rows of the resource from the local collection. */
 	protected abstract void removeDataRows(Resource resource);
+	
+	/**
+	 * Enqueues updating the extra data rows of an existing resource to the data rows of remoteResource.
+	 * By default, all rows are removed and added again; implementations may only enqueue the changes by diffDataRows().
+	 */
+	protected void updateDataRows(T localResource, Resource remoteResource) throws LocalStorageException {
+		removeDataRows(localResource);
+		addDataRows(remoteResource, localResource.getLocalID(), -1);
+	}
 }
@@ -11,16 +11,31 @@ import android.util.Log;
 
 import net.fortuna.ical4j.model.ValidationException;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntityHC4;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.ByteArrayBuffer;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import at.bitfire.davdroid.DigestUtils;
+import at.bitfire.davdroid.ParserContext;
 import at.bitfire.davdroid.URIUtils;
 import at.bitfire.davdroid.webdav.DavException;
 import at.bitfire.davdroid.webdav.DavMultiget;
@@ -42,6 +57,12 @@ import lombok.Getter;
 public abstract class RemoteCollection<T extends Resource> {
 	private static final String TAG = "davdroid.RemoteCollection";
 	
+	/** number of threads which parse the entities of multi-get responses (shared by all collections) */
+	private static final int PARSE_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+	/** max. number of parsed entities per multi-get response which are waiting to be passed to the callback */
+	private static final int MAX_PENDING_PARSES = 4 * PARSE_THREADS;
+	private static ThreadPoolExecutor parseExecutor;
+	
 	CloseableHttpClient httpClient;
 	@Getter WebDavResource collection;
 
@@ -49,6 +70,19 @@ public abstract class RemoteCollection<T extends Resource> {
 	abstract protected DavMultiget.Type multiGetType();
 	abstract protected T newResourceSkeleton(String name, String ETag);
 	
+	/**
+	 * Receives resources while they are read from the server, so that the caller can process
+	 * them one by one instead of getting an array of the whole collection.
+	 */
+	public interface ResourceCallback<E extends Exception> {
+		void onResource(Resource resource) throws E;
+	}
+	
+	/** statistics about a multi-get response (used to adapt the number of resources per request) */
+	public static class MultiGetStatistics {
+		@Getter long contentLength;
+	}
+	
 	public RemoteCollection(CloseableHttpClient httpClient, String baseURL, String user, String password, boolean preemptiveAuth) throws URISyntaxException {
 		this.httpClient = httpClient;
 		
@@ -60,7 +94,8 @@ public abstract class RemoteCollection<T extends Resource> {
 
 	public String getCTag() throws URISyntaxException, IOException, HttpException {
 		try {
-			if (collection.getCTag() == null && collection.getMembers() == null)	// not already fetched
+			// sync-collection REPORTs don't return the CTag, so it has to be fetched separately in this case
+			if (collection.getCTag() == null && (collection.getMembers() == null || collection.getRemovedMembers() != null))	// not already fetched
 				collection.propfind(HttpPropfind.Mode.COLLECTION_CTAG);
 		} catch (DavException e) {
 			return null;
@@ -68,61 +103,245 @@ public abstract class RemoteCollection<T extends Resource> {
 		return collection.getCTag();
 	}
 	
+	/**
+	 * Sets CTag and sync-token when they are already known (for instance, from a Depth: 1 PROPFIND
+	 * on the parent collection), so that getCTag() doesn't need a request of its own.
+	 */
+	public void setCollectionTags(String cTag, String syncToken) {
+		if (cTag != null)
+			collection.setCTag(cTag);
+		if (syncToken != null)
+			collection.setSyncToken(syncToken);
+	}
+	
+	/** gets the sync-token (RFC 6578) of the collection; only available after getCTag(), getMemberETags() or getMemberETagsSince() */
+	public String getSyncToken() {
+		return collection.getSyncToken();
+	}
+	
 	public Resource[] getMemberETags() throws URISyntaxException, IOException, DavException, HttpException {
-		collection.propfind(HttpPropfind.Mode.MEMBERS_ETAG);
-			
-		List<T> resources = new LinkedList<T>();
-		if (collection.getMembers() != null) {
-			for (WebDavResource member : collection.getMembers())
-				resources.add(newResourceSkeleton(member.getName(), member.getETag()));
-		}
+		final List<Resource> resources = new LinkedList<Resource>();
+		getMemberETags(new ResourceCallback<RuntimeException>() {
+			@Override
+			public void onResource(Resource resource) {
+				resources.add(resource);
+			}
+		});
 		return resources.toArray(new Resource[0]);
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Fetches the names and ETags of all members. Every member is passed to the callback
+	 * (as resource skeleton) as soon as it has been read from the response.
+	 */
+	public <E extends Exception> void getMemberETags(ResourceCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		collection.propfind(HttpPropfind.Mode.MEMBERS_ETAG, skeletonCallback(callback));
+	}
+	
+	/**
+	 * Fetches the members which have been added or changed since the given sync-token (sync-collection REPORT, RFC 6578).
+	 * Names of members which have been removed in the meanwhile are available by getRemovedMemberNames() afterwards.
+	 * @throws HttpException when the server doesn't support sync-collection or the sync-token is not valid anymore
+	 */
+	public Resource[] getMemberETagsSince(String syncToken) throws URISyntaxException, IOException, DavException, HttpException {
+		final List<Resource> resources = new LinkedList<Resource>();
+		getMemberETagsSince(syncToken, new ResourceCallback<RuntimeException>() {
+			@Override
+			public void onResource(Resource resource) {
+				resources.add(resource);
+			}
+		});
+		return resources.toArray(new Resource[0]);
+	}
+	
+	/** like getMemberETagsSince(String), but every added/changed member is passed to the callback as soon as it has been read */
+	public <E extends Exception> void getMemberETagsSince(String syncToken, ResourceCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		collection.syncCollection(syncToken, skeletonCallback(callback));
+	}
+	
+	/** names of the members which have been removed since the sync-token given to getMemberETagsSince() */
+	public String[] getRemovedMemberNames() {
+		List<String> names = new LinkedList<String>();
+		if (collection.getRemovedMembers() != null)
+			for (WebDavResource member : collection.getRemovedMembers())
+				names.add(member.getName());
+		return names.toArray(new String[0]);
+	}
+	
 	public Resource[] multiGet(Resource[] resources) throws URISyntaxException, IOException, DavException, HttpException {
+		return multiGet(resources, null);
+	}
+	
+	/**
+	 * Fetches the given resources by a multi-get REPORT.
+	 * @param resources		resources to fetch
+	 * @param statistics	will be filled with the total size of the received entities (may be null)
+	 * @return fetched resources which could be parsed
+	 */
+	public Resource[] multiGet(Resource[] resources, MultiGetStatistics statistics) throws URISyntaxException, IOException, DavException, HttpException {
+		final List<Resource> foundResources = new LinkedList<Resource>();
+		multiGet(resources, statistics, new ResourceCallback<RuntimeException>() {
+			@Override
+			public void onResource(Resource resource) {
+				foundResources.add(resource);
+			}
+		});
+		return foundResources.toArray(new Resource[0]);
+	}
+	
+	/**
+	 * Fetches the given resources by a multi-get REPORT. Entities are parsed in parallel as soon as they
+	 * have been read from the response and passed to the callback in response order (always in the calling
+	 * thread); resources which can't be parsed are ignored.
+	 * @param resources		resources to fetch
+	 * @param statistics	will be filled with the total size of the received entities (may be null)
+	 * @param callback		receives the fetched resources
+	 */
+	public <E extends Exception> void multiGet(Resource[] resources, final MultiGetStatistics statistics, final ResourceCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		if (resources.length == 1) {
+			Resource resource;
+			try {
+				resource = get(resources[0], statistics);
+			} catch (InvalidResourceException e) {
+				Log.e(TAG, "Couldn't parse entity from GET", e);
+				return;
+			}
+			callback.onResource(resource);
+			return;
+		}
+		
+		Log.i(TAG, "Multi-getting " + resources.length + " remote resource(s)");
+		
+		String[] names = new String[resources.length];
+		final Map<String, String> knownDigests = new HashMap<String, String>();
+		for (int i = 0; i < resources.length; i++) {
+			names[i] = resources[i].getName();
+			if (resources[i].getContentDigest() != null)
+				knownDigests.put(names[i], resources[i].getContentDigest());
+		}
+		
+		// entities are parsed by the worker pool while the response is still being read; parsed
+		// resources are passed to the callback in response order
+		final LinkedList<Future<T>> parsing = new LinkedList<Future<T>>();
 		try {
-			if (resources.length == 1)
-				return (T[]) new Resource[] { get(resources[0]) };
-			
-			Log.i(TAG, "Multi-getting " + resources.length + " remote resource(s)");
-			
-			LinkedList<String> names = new LinkedList<String>();
-			for (Resource resource : resources)
-				names.add(resource.getName());
-			
-			LinkedList<T> foundResources = new LinkedList<T>();
-			collection.multiGet(multiGetType(), names.toArray(new String[0]));
-			if (collection.getMembers() == null)
-				throw new DavNoContentException();
-			
-			for (WebDavResource member : collection.getMembers()) {
-				T resource = newResourceSkeleton(member.getName(), member.getETag());
-				try {
-					if (member.getContent() != null) {
-						@Cleanup InputStream is = new ByteArrayInputStream(member.getContent());
-						resource.parseEntity(is);
-						foundResources.add(resource);
-					} else
+			// use a copy with its own HTTP context so that multi-gets can be run concurrently
+			WebDavResource multiGetCollection = collection.fork();
+			multiGetCollection.multiGet(multiGetType(), names, new WebDavResource.MemberCallback<E>() {
+				@Override
+				public void onMember(WebDavResource member) throws IOException, E {
+					final byte[] content = member.getContent();
+					if (content == null) {
 						Log.e(TAG, "Ignoring entity without content");
-				} catch (InvalidResourceException e) {
-					Log.e(TAG, "Ignoring unparseable entity in multi-response", e);
+						return;
+					}
+					if (statistics != null)
+						statistics.contentLength += content.length;
+					
+					final T resource = newResourceSkeleton(member.getName(), member.getETag());
+					resource.setContentDigest(knownDigests.get(member.getName()));
+					
+					while (parsing.size() >= MAX_PENDING_PARSES || (!parsing.isEmpty() && parsing.getFirst().isDone()))
+						deliverParsed(parsing.removeFirst(), callback);
+					
+					parsing.add(parseExecutor().submit(new Callable<T>() {
+						@Override
+						public T call() throws Exception {
+							parseEntity(resource, content);
+							return resource;
+						}
+					}));
 				}
-			}
+			});
 			
-			return foundResources.toArray(new Resource[0]);
-		} catch (InvalidResourceException e) {
-			Log.e(TAG, "Couldn't parse entity from GET", e);
+			while (!parsing.isEmpty())
+				deliverParsed(parsing.removeFirst(), callback);
+		} finally {
+			// multi-get has been aborted, don't parse the remaining entities anymore
+			for (Future<T> future : parsing)
+				future.cancel(true);
 		}
-		
-		return new Resource[0];
 	}
 	
 	
 	/* internal member operations */
+	
+	/**
+	 * Parses an entity into a resource, unless its digest equals the known content digest of the resource
+	 * (only the ETag has changed, see LocalCollection.updateByRemoteName()). Sets the content digest of the resource.
+	 */
+	private static void parseEntity(Resource resource, byte[] entity) throws IOException, InvalidResourceException {
+		String digest = DigestUtils.sha1(entity);
+		if (digest.equals(resource.getContentDigest())) {
+			Log.d(TAG, "Content of " + resource.getName() + " hasn't changed, not parsing it again");
+			return;
+		}
+		
+		resource.setContentDigest(digest);
+		@Cleanup InputStream is = new ByteArrayInputStream(entity);
+		resource.parseEntity(is);
+	}
+	
+	/**
+	 * Waits until an entity of a multi-get response has been parsed and passes the resource to the callback.
+	 * Entities which can't be parsed are ignored (only this resource is skipped).
+	 */
+	private static <T extends Resource, E extends Exception> void deliverParsed(Future<T> future, ResourceCallback<E> callback) throws IOException, E {
+		T resource;
+		try {
+			resource = future.get();
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while waiting for parsed entity");
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Parsing interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InvalidResourceException) {
+				Log.e(TAG, "Ignoring unparseable entity in multi-response", cause);
+				return;
+			} else if (cause instanceof IOException)
+				throw (IOException)cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+		callback.onResource(resource);
+	}
+	
+	private static synchronized ThreadPoolExecutor parseExecutor() {
+		if (parseExecutor == null) {
+			// worker threads need the class loader of the sync thread (iCal4j ResourceLoader)
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			parseExecutor = new ThreadPoolExecutor(PARSE_THREADS, PARSE_THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "davdroid.Parse");
+						thread.setContextClassLoader(classLoader);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			// don't keep idle threads between synchronizations
+			parseExecutor.allowCoreThreadTimeOut(true);
+		}
+		return parseExecutor;
+	}
+	
+	protected <E extends Exception> WebDavResource.MemberCallback<E> skeletonCallback(final ResourceCallback<E> callback) {
+		return new WebDavResource.MemberCallback<E>() {
+			@Override
+			public void onMember(WebDavResource member) throws E {
+				callback.onResource(newResourceSkeleton(member.getName(), member.getETag()));
+			}
+		};
+	}
 
 	public Resource get(Resource resource) throws URISyntaxException, IOException, HttpException, DavException, InvalidResourceException {
-		WebDavResource member = new WebDavResource(collection, resource.getName());
+		return get(resource, null);
+	}
+	
+	protected Resource get(Resource resource, MultiGetStatistics statistics) throws URISyntaxException, IOException, HttpException, DavException, InvalidResourceException {
+		WebDavResource member = new WebDavResource(collection.fork(), resource.getName());
 		
 		if (resource instanceof Contact)
 			member.get(Contact.MIME_TYPE);
@@ -136,48 +355,76 @@ public abstract class RemoteCollection<T extends Resource> {
 		byte[] data = member.getContent();
 		if (data == null)
 			throw new DavNoContentException();
+		if (statistics != null)
+			statistics.contentLength += data.length;
 		
-		@Cleanup InputStream is = new ByteArrayInputStream(data);
 		try {
-			resource.parseEntity(is);
+			parseEntity(resource, data);
 		} catch(VCardParseException e) {
 			throw new InvalidResourceException(e);
 		}
 		return resource;
 	}
 	
+	/*
+	 * add(), delete() and update() may be called concurrently (UploadPipeline), so every request uses
+	 * its own HTTP context and the collection itself is not modified. After uploading, the caller has
+	 * to call invalidateCTag() because the collection has implicitly changed, too.
+	 */
+	
 	// returns ETag of the created resource, if returned by server
 	public String add(Resource res) throws URISyntaxException, IOException, HttpException, ValidationException {
-		WebDavResource member = new WebDavResource(collection, res.getName(), res.getETag());
+		WebDavResource member = new WebDavResource(collection.fork(), res.getName(), res.getETag());
 		member.setContentType(memberContentType());
 		
-		@Cleanup ByteArrayOutputStream os = res.toEntity();
-		String eTag = member.put(os.toByteArray(), PutMode.ADD_DONT_OVERWRITE);
-		
-		// after a successful upload, the collection has implicitely changed, too
-		collection.invalidateCTag();
-		
-		return eTag;
+		try {
+			return member.put(spoolEntity(res), PutMode.ADD_DONT_OVERWRITE);
+		} finally {
+			ParserContext.get().trimRequestBuffer();
+		}
 	}
 
 	public void delete(Resource res) throws URISyntaxException, IOException, HttpException {
-		WebDavResource member = new WebDavResource(collection, res.getName(), res.getETag());
+		WebDavResource member = new WebDavResource(collection.fork(), res.getName(), res.getETag());
 		member.delete();
-		
-		collection.invalidateCTag();
 	}
 	
 	// returns ETag of the updated resource, if returned by server
 	public String update(Resource res) throws URISyntaxException, IOException, HttpException, ValidationException {
-		WebDavResource member = new WebDavResource(collection, res.getName(), res.getETag());
+		WebDavResource member = new WebDavResource(collection.fork(), res.getName(), res.getETag());
 		member.setContentType(memberContentType());
 		
-		@Cleanup ByteArrayOutputStream os = res.toEntity();
-		String eTag = member.put(os.toByteArray(), PutMode.UPDATE_DONT_OVERWRITE);
-		
-		// after a successful upload, the collection has implicitely changed, too
+		try {
+			return member.put(spoolEntity(res), PutMode.UPDATE_DONT_OVERWRITE);
+		} finally {
+			ParserContext.get().trimRequestBuffer();
+		}
+	}
+	
+	/** forgets the CTag of the collection after uploads, so that getCTag() fetches the new one */
+	public void invalidateCTag() {
 		collection.invalidateCTag();
-		
-		return eTag;
+	}
+	
+	/**
+	 * Serializes a resource into the request buffer of the calling thread, so that the entity neither has
+	 * to be copied for the upload nor sent chunked (which isn't supported by all servers). The returned
+	 * entity is repeatable, but only valid until the next request of the thread has been prepared.
+	 */
+	static HttpEntity spoolEntity(Resource res) throws IOException {
+		final ByteArrayBuffer spool = ParserContext.get().getRequestBuffer();
+		spool.clear();
+		res.writeEntity(new OutputStream() {
+			@Override
+			public void write(int b) {
+				spool.append(b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				spool.append(b, off, len);
+			}
+		});
+		return new ByteArrayEntityHC4(spool.buffer(), 0, spool.length());
 	}
 }
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.Getter;
+
+/**
+ * In-memory index of all entries of a local collection which have a remote file name:
+ * remote file name → (local ID, ETag, content digest, dirty flag). Allows to compare a remote resource listing with
+ * the local collection without one content provider query per resource.
+ */
+public class RemoteNameIndex {
+	
+	public static class Entry {
+		@Getter private final long localID;
+		@Getter private final String ETag;
+		@Getter private final String contentDigest;
+		// whether the entry has local changes which haven't been uploaded yet
+		@Getter private final boolean dirty;
+		
+		// whether the resource has been found in the remote listing, see markRemotelyPresent()
+		@Getter private boolean remotelyPresent;
+		
+		Entry(long localID, String ETag, String contentDigest, boolean dirty) {
+			this.localID = localID;
+			this.ETag = ETag;
+			this.contentDigest = contentDigest;
+			this.dirty = dirty;
+		}
+	}
+	
+	private final Map<String, Entry> entries;
+	
+	
+	RemoteNameIndex(int capacity) {
+		entries = new HashMap<String, Entry>(capacity*4/3 + 1);
+	}
+	
+	void put(String remoteName, long localID, String eTag, String contentDigest, boolean dirty) {
+		entries.put(remoteName, new Entry(localID, eTag, contentDigest, dirty));
+	}
+	
+	/** @return local ID, ETag, content digest and dirty flag of the entry with the given remote file name, or null if there is no such entry */
+	public Entry get(String remoteName) {
+		return entries.get(remoteName);
+	}
+	
+	/**
+	 * Looks up the entry with the given remote file name and marks it as present on the server,
+	 * so that remote listings can be processed member by member without keeping all remote names.
+	 * @return local ID and ETag of the entry with the given remote file name, or null if there is no such entry
+	 */
+	public Entry markRemotelyPresent(String remoteName) {
+		Entry entry = entries.get(remoteName);
+		if (entry != null)
+			entry.remotelyPresent = true;
+		return entry;
+	}
+	
+	public Set<Map.Entry<String, Entry>> entrySet() {
+		return entries.entrySet();
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+}
@@ -10,6 +10,7 @@ package at.bitfire.davdroid.resource;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -23,6 +24,10 @@ import lombok.ToString;
 public abstract class Resource {
 	@Getter @Setter protected String name, ETag;
 	@Getter @Setter protected String uid;
+	
+	/* digest of the remote entity (see DigestUtils.sha1()): the digest of the last downloaded version
+	   before fetching; resources whose fetched entity has the same digest are not parsed again */
+	@Getter @Setter protected String contentDigest;
 	@Getter protected long localID;
 
 	
@@ -42,5 +47,12 @@ public abstract class Resource {
 	/** fills the resource data from an input stream (for instance, .vcf file for Contact) */
 	public abstract void parseEntity(InputStream entity) throws IOException, InvalidResourceException;
 	/** writes the resource data to an output stream (for instance, .vcf file for Contact) */
-	public abstract ByteArrayOutputStream toEntity() throws IOException;
+	public abstract void writeEntity(OutputStream os) throws IOException;
+	
+	/** @return resource data (for instance, .vcf file for Contact) in memory */
+	public ByteArrayOutputStream toEntity() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		writeEntity(os);
+		return os;
+	}
 }
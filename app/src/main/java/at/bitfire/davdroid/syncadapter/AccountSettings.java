@@ -36,10 +36,17 @@ public class AccountSettings {
 		
 		KEY_USERNAME = "user_name",
 		KEY_AUTH_PREEMPTIVE = "auth_preemptive",
+		KEY_MULTIGET_IN_FLIGHT = "multiget_in_flight",
+		
+		KEY_MULTIGET_BATCH_SIZE = "multiget_batch_size",	// + collection URL
 		
 		KEY_ADDRESSBOOK_URL = "addressbook_url",
 		KEY_ADDRESSBOOK_CTAG = "addressbook_ctag",
-		KEY_ADDRESSBOOK_VCARD_VERSION = "addressbook_vcard_version";
+		KEY_ADDRESSBOOK_SYNC_TOKEN = "addressbook_sync_token",
+		KEY_ADDRESSBOOK_VCARD_VERSION = "addressbook_vcard_version",
+		
+		KEY_CALENDAR_SYNC_WINDOW_DAYS = "calendar_sync_window_days",	// + calendar URL
+		KEY_CALENDAR_KEEP_OUTSIDE_WINDOW = "calendar_keep_outside_window";
 	
 	Context context;
 	AccountManager accountManager;
@@ -93,6 +100,29 @@ public class AccountSettings {
 		return Boolean.parseBoolean(accountManager.getUserData(account, KEY_AUTH_PREEMPTIVE));
 	}
 	
+	public int getMultiGetInFlight() {
+		try {
+			return Integer.parseInt(accountManager.getUserData(account, KEY_MULTIGET_IN_FLIGHT));
+		} catch(NumberFormatException e) {
+			return SyncManager.DEFAULT_MULTIGET_IN_FLIGHT;
+		}
+	}
+	
+	
+	// collection settings (CalDAV and CardDAV)
+	
+	public int getMultiGetBatchSize(String collectionURL) {
+		try {
+			return Integer.parseInt(accountManager.getUserData(account, KEY_MULTIGET_BATCH_SIZE + ":" + collectionURL));
+		} catch(NumberFormatException e) {
+			return MultiGetBatchSize.DEFAULT;
+		}
+	}
+	
+	public void setMultiGetBatchSize(String collectionURL, int batchSize) {
+		accountManager.setUserData(account, KEY_MULTIGET_BATCH_SIZE + ":" + collectionURL, String.valueOf(batchSize));
+	}
+	
 	
 	// address book (CardDAV) settings
 	
@@ -108,6 +138,14 @@ public class AccountSettings {
 		accountManager.setUserData(account, KEY_ADDRESSBOOK_CTAG, cTag);
 	}
 	
+	public String getAddressBookSyncToken() {
+		return accountManager.getUserData(account, KEY_ADDRESSBOOK_SYNC_TOKEN);
+	}
+	
+	public void setAddressBookSyncToken(String syncToken) {
+		accountManager.setUserData(account, KEY_ADDRESSBOOK_SYNC_TOKEN, syncToken);
+	}
+	
 	public VCardVersion getAddressBookVCardVersion() {
 		VCardVersion version = VCardVersion.V3_0;
 		String versionStr = accountManager.getUserData(account, KEY_ADDRESSBOOK_VCARD_VERSION);
@@ -117,6 +155,32 @@ public class AccountSettings {
 	}
 	
 	
+	// calendar (CalDAV) settings
+	
+	/** @return number of past days which are synchronized for the given calendar, or null for all events */
+	public Integer getCalendarSyncWindowDays(String calendarURL) {
+		try {
+			return Integer.parseInt(accountManager.getUserData(account, KEY_CALENDAR_SYNC_WINDOW_DAYS + ":" + calendarURL));
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	public void setCalendarSyncWindowDays(String calendarURL, Integer days) {
+		accountManager.setUserData(account, KEY_CALENDAR_SYNC_WINDOW_DAYS + ":" + calendarURL, (days != null) ? String.valueOf(days) : null);
+	}
+	
+	/** @return whether local events which have left the sync window are kept (default) or removed */
+	public boolean getCalendarKeepOutsideWindow() {
+		String keep = accountManager.getUserData(account, KEY_CALENDAR_KEEP_OUTSIDE_WINDOW);
+		return keep == null || Boolean.parseBoolean(keep);
+	}
+	
+	public void setCalendarKeepOutsideWindow(boolean keep) {
+		accountManager.setUserData(account, KEY_CALENDAR_KEEP_OUTSIDE_WINDOW, Boolean.toString(keep));
+	}
+	
+	
 	// update from previous account settings
 	
 	private void update(int fromVersion) {
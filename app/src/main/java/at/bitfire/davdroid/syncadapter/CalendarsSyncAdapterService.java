@@ -16,14 +16,26 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
+import at.bitfire.davdroid.URIUtils;
 import at.bitfire.davdroid.resource.CalDavCalendar;
 import at.bitfire.davdroid.resource.LocalCalendar;
 import at.bitfire.davdroid.resource.LocalCollection;
 import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.HttpException;
+import at.bitfire.davdroid.webdav.HttpPropfind;
+import at.bitfire.davdroid.webdav.WebDavResource;
 
 public class CalendarsSyncAdapterService extends Service {
 	private static SyncAdapter syncAdapter;
@@ -64,9 +76,17 @@ public class CalendarsSyncAdapterService extends Service {
 
 			try {
 				Map<LocalCollection<?>, RemoteCollection<?>> map = new HashMap<LocalCollection<?>, RemoteCollection<?>>();
-				
 				for (LocalCalendar calendar : LocalCalendar.findAll(account, provider)) {
-					RemoteCollection<?> dav = new CalDavCalendar(httpClient, calendar.getUrl(), userName, password, preemptive);
+					CalDavCalendar dav = new CalDavCalendar(httpClient, calendar.getUrl(), userName, password, preemptive);
+					
+					Integer windowDays = settings.getCalendarSyncWindowDays(calendar.getUrl());
+					if (windowDays != null) {
+						Date windowStart = syncWindowStart(windowDays);
+						Log.d(TAG, "Synchronizing events of " + calendar.getUrl() + " since " + windowStart);
+						dav.setSyncWindowStart(windowStart);
+						calendar.setSyncWindow(windowStart, settings.getCalendarKeepOutsideWindow());
+					}
+					
 					map.put(calendar, dav);
 				}
 				return map;
@@ -78,5 +98,73 @@ public class CalendarsSyncAdapterService extends Service {
 			
 			return null;
 		}
+		
+		/** @return start of a sync window of the given number of past days (at midnight UTC, so that it doesn't change with every sync) */
+		private static Date syncWindowStart(int days) {
+			Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+			start.set(Calendar.HOUR_OF_DAY, 0);
+			start.set(Calendar.MINUTE, 0);
+			start.set(Calendar.SECOND, 0);
+			start.set(Calendar.MILLISECOND, 0);
+			start.add(Calendar.DAY_OF_MONTH, -days);
+			return start.getTime();
+		}
+		
+		@Override
+		protected void prefetchCollectionTags(Account account, Map<LocalCollection<?>, RemoteCollection<?>> syncCollections) {
+			AccountSettings settings = new AccountSettings(getContext(), account);
+			
+			// calendars by parent collection (usually the calendar home set)
+			Map<URI, List<CalDavCalendar>> calendarsByParent = new HashMap<URI, List<CalDavCalendar>>();
+			for (RemoteCollection<?> remote : syncCollections.values()) {
+				CalDavCalendar dav = (CalDavCalendar)remote;
+				// without trailing slash, ".." would resolve to the grandparent
+				URI parent = URIUtils.ensureTrailingSlash(dav.getCollection().getLocation()).resolve("..");
+				List<CalDavCalendar> siblings = calendarsByParent.get(parent);
+				if (siblings == null)
+					calendarsByParent.put(parent, siblings = new LinkedList<CalDavCalendar>());
+				siblings.add(dav);
+			}
+			
+			for (Map.Entry<URI, List<CalDavCalendar>> entry : calendarsByParent.entrySet())
+				if (entry.getValue().size() > 1)
+					fetchCollectionTags(entry.getKey(), entry.getValue(), settings.getUserName(), settings.getPassword(), settings.getPreemptiveAuth());
+		}
+		
+		/**
+		 * Fetches CTags and sync-tokens of all given calendars by one Depth: 1 PROPFIND on their parent
+		 * collection, so that every SyncManager can check for remote changes without a request of its own.
+		 * If the PROPFIND fails, the tags will be fetched per calendar as usual.
+		 */
+		private void fetchCollectionTags(URI parent, List<CalDavCalendar> calendars, String userName, String password, boolean preemptive) {
+			Map<URI, WebDavResource> members = new HashMap<URI, WebDavResource>();
+			try {
+				Log.i(TAG, "Fetching CTags of " + calendars.size() + " calendars from " + parent);
+				WebDavResource parentCollection = new WebDavResource(httpClient, parent, userName, password, preemptive);
+				parentCollection.propfind(HttpPropfind.Mode.MEMBERS_CTAG);
+				if (parentCollection.getMembers() != null)
+					for (WebDavResource member : parentCollection.getMembers())
+						members.put(URIUtils.ensureTrailingSlash(member.getLocation()), member);
+			} catch (URISyntaxException ex) {
+				// optimization only, the tags will be fetched per calendar
+				Log.w(TAG, "Couldn't fetch CTags from parent collection", ex);
+				return;
+			} catch (IOException ex) {
+				Log.w(TAG, "Couldn't fetch CTags from parent collection", ex);
+				return;
+			} catch (HttpException ex) {
+				Log.w(TAG, "Couldn't fetch CTags from parent collection", ex);
+				return;
+			} catch (DavException ex) {
+				Log.w(TAG, "Couldn't fetch CTags from parent collection", ex);
+				return;
+			}
+			
+			for (CalDavCalendar calendar : calendars) {
+				WebDavResource member = members.get(URIUtils.ensureTrailingSlash(calendar.getCollection().getLocation()));
+				if (member != null)
+					calendar.setCollectionTags(member.getCTag(), member.getSyncToken());
+			}
+		}
 	}
 }
@@ -36,7 +36,15 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import at.bitfire.davdroid.Constants;
@@ -67,6 +75,9 @@ public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter impleme
 	 *    Use the READ  lock when httpClient will only be called (to prevent it from being unset while being used).
 	 *    Use the WRITE lock when httpClient will be modified (set/unset). */
 	private final static ReentrantReadWriteLock httpClientLock = new ReentrantReadWriteLock();
+	
+	/** maximum number of collections of one account which are synchronized concurrently (see DavHttpClient.MAX_CONNECTIONS_PER_ROUTE) */
+	public final static int MAX_PARALLEL_SYNCS = 3;
 
 	
 	public DavSyncAdapter(Context context) {
@@ -104,6 +115,13 @@ public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter impleme
 	}
 	
 	protected abstract Map<LocalCollection<?>, RemoteCollection<?>> getSyncPairs(Account account, ContentProviderClient provider);
+	
+	/**
+	 * Called before a full sync of the given collections, so that implementations can fetch the CTags
+	 * of several collections at once (see RemoteCollection.setCollectionTags()). Not called for upload-only syncs.
+	 */
+	protected void prefetchCollectionTags(Account account, Map<LocalCollection<?>, RemoteCollection<?>> syncCollections) {
+	}
 
 	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 	@Override
@@ -136,39 +154,16 @@ public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter impleme
 			Map<LocalCollection<?>, RemoteCollection<?>> syncCollections = getSyncPairs(account, provider);
 			if (syncCollections == null)
 				Log.i(TAG, "Nothing to synchronize");
-			else
-				try {
-					for (Map.Entry<LocalCollection<?>, RemoteCollection<?>> entry : syncCollections.entrySet())
-						new SyncManager(entry.getKey(), entry.getValue()).synchronize(extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL), syncResult);
-				} catch (DavException ex) {
-					syncException = ex;
-					syncResult.stats.numParseExceptions++;
-					Log.e(TAG, "Invalid DAV response", ex);
-				} catch (HttpException ex) {
-					if (ex.getCode() == HttpStatus.SC_UNAUTHORIZED) {
-						syncException = ex;
-						Log.e(TAG, "HTTP Unauthorized " + ex.getCode(), ex);
-						syncResult.stats.numAuthExceptions++;
-					} else if (ex.isClientError()) {
-						syncException = ex;
-						Log.e(TAG, "Hard HTTP error " + ex.getCode(), ex);
-						syncResult.stats.numParseExceptions++;
-					} else {
-						Log.w(TAG, "Soft HTTP error " + ex.getCode() + " (Android will try again later)", ex);
-						syncResult.stats.numIoExceptions++;
-					}
-				} catch (LocalStorageException ex) {
-					syncException = ex;
-					syncResult.databaseError = true;
-					Log.e(TAG, "Local storage (content provider) exception", ex);
-				} catch (IOException ex) {
-					syncException = ex;
-					syncResult.stats.numIoExceptions++;
-					Log.e(TAG, "I/O error (Android will try again later)", ex);
-				} catch (URISyntaxException ex) {
-					syncException = ex;
-					Log.e(TAG, "Invalid URI (file name) syntax", ex);
-				}
+			else {
+				boolean manualSync = extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL),
+						// requested by the content provider after local modifications
+						uploadOnly = !manualSync && extras.getBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, false);
+				if (uploadOnly)
+					Log.i(TAG, "Upload-only sync, pushing local changes");
+				else
+					prefetchCollectionTags(account, syncCollections);
+				syncException = synchronize(syncCollections, accountSettings, manualSync, uploadOnly, syncResult);
+			}
 		} finally {
 			// allow httpClient shutdown
 			httpClientLock.readLock().unlock();
@@ -195,5 +190,169 @@ public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter impleme
 
 		Log.i(TAG, "Sync complete for " + authority);
 	}
+	
+	
+	/**
+	 * Synchronizes all collection pairs, up to MAX_PARALLEL_SYNCS of them concurrently. Every pair has its
+	 * own SyncResult (which is merged into syncResult afterwards), so that an error in one collection
+	 * doesn't stop or affect the synchronization of the others.
+	 * @return exception which should be shown to the user, or null if there was none
+	 */
+	private Exception synchronize(Map<LocalCollection<?>, RemoteCollection<?>> syncCollections, AccountSettings accountSettings, boolean manualSync, boolean uploadOnly, SyncResult syncResult) {
+		int parallelSyncs = Math.min(MAX_PARALLEL_SYNCS, syncCollections.size());
+		
+		// concurrent syncs share the connections per route: every sync gets an equal part, of which
+		// multi-gets may use all but the one connection which is held by the member listing
+		int connectionsPerSync = DavHttpClient.MAX_CONNECTIONS_PER_ROUTE / Math.max(1, parallelSyncs),
+			multiGetInFlight = Math.max(1, Math.min(accountSettings.getMultiGetInFlight(), connectionsPerSync - 1)),
+			uploadsInFlight = Math.max(1, Math.min(SyncManager.DEFAULT_UPLOADS_IN_FLIGHT, connectionsPerSync));
+		
+		List<CollectionSync> syncs = new LinkedList<CollectionSync>();
+		for (Map.Entry<LocalCollection<?>, RemoteCollection<?>> entry : syncCollections.entrySet())
+			syncs.add(new CollectionSync(entry.getKey(), entry.getValue(), accountSettings, multiGetInFlight, uploadsInFlight, manualSync, uploadOnly, syncResult));
+		
+		Exception syncException = null;
+		if (parallelSyncs <= 1) {
+			for (CollectionSync sync : syncs) {
+				Exception ex = sync.call();
+				if (ex != null)
+					syncException = ex;
+			}
+			return syncException;
+		}
+		
+		// worker threads need the class loader of the sync thread (iCal4j ResourceLoader)
+		final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelSyncs, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "davdroid.CollectionSync");
+				thread.setContextClassLoader(classLoader);
+				return thread;
+			}
+		});
+		try {
+			for (Future<Exception> future : executor.invokeAll(syncs)) {
+				Exception ex = future.get();
+				if (ex != null)
+					syncException = ex;
+			}
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Sync has been interrupted");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// unchecked exceptions are bugs which shouldn't be hidden
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		return syncException;
+	}
+	
+	/**
+	 * Synchronizes a single collection pair with its own SyncResult, which is merged into
+	 * the SyncResult of the whole sync when done. Errors are handled here and don't affect other collections.
+	 */
+	private static class CollectionSync implements Callable<Exception> {
+		final LocalCollection<?> local;
+		final RemoteCollection<?> remote;
+		final AccountSettings accountSettings;
+		final int multiGetInFlight, uploadsInFlight;
+		final boolean manualSync, uploadOnly;
+		final SyncResult syncResult;
+		
+		CollectionSync(LocalCollection<?> local, RemoteCollection<?> remote, AccountSettings accountSettings, int multiGetInFlight, int uploadsInFlight, boolean manualSync, boolean uploadOnly, SyncResult syncResult) {
+			this.local = local;
+			this.remote = remote;
+			this.accountSettings = accountSettings;
+			this.multiGetInFlight = multiGetInFlight;
+			this.uploadsInFlight = uploadsInFlight;
+			this.manualSync = manualSync;
+			this.uploadOnly = uploadOnly;
+			this.syncResult = syncResult;
+		}
+		
+		/** @return exception which should be shown to the user, or null */
+		@Override
+		public Exception call() {
+			SyncResult collectionResult = new SyncResult();
+			Exception syncException = null;
+			
+			String collectionURL = remote.getCollection().getLocation().toASCIIString();
+			SyncManager syncManager = new SyncManager(local, remote);
+			syncManager.setMultiGetInFlight(multiGetInFlight);
+			syncManager.setUploadsInFlight(uploadsInFlight);
+			syncManager.setMultiGetBatchSize(accountSettings.getMultiGetBatchSize(collectionURL));
+			try {
+				if (uploadOnly)
+					syncManager.upload(collectionResult);
+				else
+					syncManager.synchronize(manualSync, collectionResult);
+			} catch (DavException ex) {
+				syncException = ex;
+				collectionResult.stats.numParseExceptions++;
+				Log.e(TAG, "Invalid DAV response", ex);
+			} catch (HttpException ex) {
+				if (ex.getCode() == HttpStatus.SC_UNAUTHORIZED) {
+					syncException = ex;
+					Log.e(TAG, "HTTP Unauthorized " + ex.getCode(), ex);
+					collectionResult.stats.numAuthExceptions++;
+				} else if (ex.isClientError()) {
+					syncException = ex;
+					Log.e(TAG, "Hard HTTP error " + ex.getCode(), ex);
+					collectionResult.stats.numParseExceptions++;
+				} else {
+					Log.w(TAG, "Soft HTTP error " + ex.getCode() + " (Android will try again later)", ex);
+					collectionResult.stats.numIoExceptions++;
+				}
+			} catch (LocalStorageException ex) {
+				syncException = ex;
+				collectionResult.databaseError = true;
+				Log.e(TAG, "Local storage (content provider) exception", ex);
+			} catch (IOException ex) {
+				syncException = ex;
+				collectionResult.stats.numIoExceptions++;
+				Log.e(TAG, "I/O error (Android will try again later)", ex);
+			} catch (URISyntaxException ex) {
+				syncException = ex;
+				Log.e(TAG, "Invalid URI (file name) syntax", ex);
+			} finally {
+				// next sync of this collection starts with the last adapted batch size
+				accountSettings.setMultiGetBatchSize(collectionURL, syncManager.getMultiGetBatchSize());
+				
+				mergeSyncResult(syncResult, collectionResult);
+			}
+			return syncException;
+		}
+	}
+	
+	/** adds the statistics and flags of a collection sync to the result of the whole sync (may be called by concurrent collection syncs) */
+	static void mergeSyncResult(SyncResult result, SyncResult collectionResult) {
+		synchronized(result) {
+			mergeStatistics(result, collectionResult);
+		}
+	}
+	
+	private static void mergeStatistics(SyncResult result, SyncResult collectionResult) {
+		result.stats.numAuthExceptions += collectionResult.stats.numAuthExceptions;
+		result.stats.numIoExceptions += collectionResult.stats.numIoExceptions;
+		result.stats.numParseExceptions += collectionResult.stats.numParseExceptions;
+		result.stats.numConflictDetectedExceptions += collectionResult.stats.numConflictDetectedExceptions;
+		result.stats.numInserts += collectionResult.stats.numInserts;
+		result.stats.numUpdates += collectionResult.stats.numUpdates;
+		result.stats.numDeletes += collectionResult.stats.numDeletes;
+		result.stats.numEntries += collectionResult.stats.numEntries;
+		result.stats.numSkippedEntries += collectionResult.stats.numSkippedEntries;
+		
+		result.databaseError |= collectionResult.databaseError;
+		result.tooManyDeletions |= collectionResult.tooManyDeletions;
+		result.tooManyRetries |= collectionResult.tooManyRetries;
+		result.fullSyncRequested |= collectionResult.fullSyncRequested;
+		result.partialSyncUnavailable |= collectionResult.partialSyncUnavailable;
+		result.moreRecordsToGet |= collectionResult.moreRecordsToGet;
+	}
 
 }
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import android.util.Log;
+
+/**
+ * Number of resources per multi-get REPORT, adapted to the observed responses:
+ * grows while responses are fast and small, shrinks on slow or very large responses
+ * and on timeouts. Thread-safe, because multi-gets may run concurrently.
+ */
+class MultiGetBatchSize {
+	private static final String TAG = "davdroid.MultiGetBatchSize";
+	
+	public static final int
+		MIN = 5,
+		MAX = 500,
+		DEFAULT = 35;
+	
+	// responses faster than this let the batch size grow, slower ones let it shrink [ms]
+	static final long
+		FAST_RESPONSE = 3*1000,
+		SLOW_RESPONSE = 15*1000;
+	
+	// responses larger than this let the batch size shrink, smaller ones may grow [bytes]
+	static final long
+		LARGE_RESPONSE = 2*1024*1024,
+		SMALL_RESPONSE = 512*1024;
+	
+	private int size;
+	
+	
+	MultiGetBatchSize(int initialSize) {
+		size = bounded(initialSize);
+	}
+	
+	synchronized int get() {
+		return size;
+	}
+	
+	/** adapts the batch size to a successful multi-get of n resources which took duration ms and returned contentLength bytes */
+	synchronized void succeeded(int n, long duration, long contentLength) {
+		if (duration > SLOW_RESPONSE || contentLength > LARGE_RESPONSE)
+			size = bounded(size/2);
+		else if (n >= size && duration < FAST_RESPONSE && contentLength < SMALL_RESPONSE)
+			// only grow if the batch was full-size; otherwise it doesn't tell anything about larger batches
+			size = bounded(size + size/2);
+		else
+			return;
+		Log.d(TAG, "Multi-get of " + n + " resources: " + duration + " ms, " + contentLength + " bytes; new batch size: " + size);
+	}
+	
+	/** shrinks the batch size after a multi-get of n resources has timed out */
+	synchronized void timedOut(int n) {
+		size = bounded(Math.min(size, n)/2);
+		Log.i(TAG, "Multi-get of " + n + " resources timed out; new batch size: " + size);
+	}
+	
+	
+	private static int bounded(int size) {
+		return Math.max(MIN, Math.min(size, MAX));
+	}
+}
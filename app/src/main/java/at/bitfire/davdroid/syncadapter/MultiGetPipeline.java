@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.HttpException;
+
+/**
+ * Fetches resources from a remote collection by multi-get REPORTs in batches.
+ * Resources can be added while the remote listing is still being read: full batches are requested
+ * in the background immediately. At most inFlight batches are requested and not yet returned at
+ * any time (running REPORTs as well as fetched batches which haven't been taken), so fetched
+ * resources can't pile up in memory; further added resources are only kept as (small) listing
+ * entries until a batch has been taken by next(). Batches are returned in request order.
+ * The number of resources per REPORT is taken from (and reported back to) a {@link MultiGetBatchSize},
+ * so that it adapts to the server.
+ */
+class MultiGetPipeline implements Closeable {
+	private static final String TAG = "davdroid.MultiGetPipeline";
+	
+	final RemoteCollection<? extends Resource> remote;
+	final MultiGetBatchSize batchSize;
+	final int inFlight;
+	
+	// resources which have been added, but not requested yet
+	final LinkedList<Resource> queued = new LinkedList<Resource>();
+	
+	ExecutorService executor;
+	// requested batches which haven't been returned yet (at most inFlight)
+	final LinkedList<Future<Resource[]>> pending = new LinkedList<Future<Resource[]>>();
+	
+	
+	MultiGetPipeline(RemoteCollection<? extends Resource> remote, MultiGetBatchSize batchSize, int inFlight) {
+		this.remote = remote;
+		this.batchSize = batchSize;
+		this.inFlight = inFlight;
+	}
+	
+	/**
+	 * Adds a resource which shall be fetched. Doesn't block, so it may be called while the
+	 * connection of a listing is held (the multi-gets never have to wait for the listing).
+	 * A batch is only requested when it's full and less than inFlight batches are pending.
+	 */
+	void add(Resource resource) {
+		queued.add(resource);
+		requestFull();
+	}
+	
+	/**
+	 * Requests the remaining added resources and waits for the next batch. Must only be called
+	 * when all resources have been added.
+	 * @return next batch of resources (in request order), or null if all resources have been fetched
+	 */
+	Resource[] next() throws URISyntaxException, IOException, HttpException, DavException {
+		requestRemaining();
+		if (pending.isEmpty())
+			return null;
+		
+		Resource[] fetched = await(pending.removeFirst());
+		// request the next batch before the caller processes this one
+		requestRemaining();
+		return fetched;
+	}
+	
+	@Override
+	public void close() {
+		if (executor != null) {
+			for (Future<Resource[]> future : pending)
+				future.cancel(true);
+			pending.clear();
+			executor.shutdownNow();
+		}
+		queued.clear();
+	}
+	
+	
+	/** requests full batches as long as less than inFlight batches are pending */
+	private void requestFull() {
+		while (pending.size() < inFlight && queued.size() >= batchSize.get())
+			request(batchSize.get());
+	}
+	
+	/** requests batches (the last one may be smaller) as long as less than inFlight batches are pending */
+	private void requestRemaining() {
+		while (pending.size() < inFlight && !queued.isEmpty())
+			request(Math.min(batchSize.get(), queued.size()));
+	}
+	
+	private void request(int size) {
+		if (executor == null) {
+			// worker threads need the class loader of the sync thread (iCal4j ResourceLoader)
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			executor = Executors.newFixedThreadPool(inFlight, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "davdroid.MultiGet");
+					thread.setContextClassLoader(classLoader);
+					return thread;
+				}
+			});
+		}
+		
+		final Resource[] request = new Resource[size];
+		for (int i = 0; i < size; i++)
+			request[i] = queued.removeFirst();
+		pending.add(executor.submit(new Callable<Resource[]>() {
+			@Override
+			public Resource[] call() throws Exception {
+				return fetch(request);
+			}
+		}));
+	}
+	
+	/**
+	 * Fetches a batch and reports duration and response size to the batch size.
+	 * If the REPORT times out, the batch is fetched again in smaller parts.
+	 */
+	private Resource[] fetch(Resource[] batch) throws URISyntaxException, IOException, HttpException, DavException {
+		RemoteCollection.MultiGetStatistics statistics = new RemoteCollection.MultiGetStatistics();
+		long start = System.currentTimeMillis();
+		try {
+			Resource[] fetched = remote.multiGet(batch, statistics);
+			batchSize.succeeded(batch.length, System.currentTimeMillis() - start, statistics.getContentLength());
+			return fetched;
+		} catch (SocketTimeoutException e) {
+			batchSize.timedOut(batch.length);
+			int size = batchSize.get();
+			if (batch.length <= size)
+				throw e;
+			
+			Log.i(TAG, "Multi-get timed out, retrying in batches of " + size + " resources");
+			List<Resource> fetched = new ArrayList<Resource>(batch.length);
+			for (int i = 0; i < batch.length; i += size)
+				fetched.addAll(Arrays.asList(fetch(Arrays.copyOfRange(batch, i, Math.min(i + size, batch.length)))));
+			return fetched.toArray(new Resource[fetched.size()]);
+		}
+	}
+	
+	private static Resource[] await(Future<Resource[]> future) throws URISyntaxException, IOException, HttpException, DavException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while waiting for multi-get response");
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Multi-get interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof URISyntaxException)
+				throw (URISyntaxException)cause;
+			else if (cause instanceof IOException)
+				throw (IOException)cause;
+			else if (cause instanceof HttpException)
+				throw (HttpException)cause;
+			else if (cause instanceof DavException)
+				throw (DavException)cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -12,18 +12,22 @@ import android.util.Log;
 
 import net.fortuna.ical4j.model.ValidationException;
 
+import org.apache.http.HttpStatus;
+
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 
-import at.bitfire.davdroid.ArrayUtils;
 import at.bitfire.davdroid.resource.LocalCollection;
 import at.bitfire.davdroid.resource.LocalStorageException;
 import at.bitfire.davdroid.resource.RecordNotFoundException;
 import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.RemoteNameIndex;
 import at.bitfire.davdroid.resource.Resource;
 import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.DavHttpClient;
 import at.bitfire.davdroid.webdav.HttpException;
 import at.bitfire.davdroid.webdav.NotFoundException;
 import at.bitfire.davdroid.webdav.PreconditionFailedException;
@@ -31,25 +35,77 @@ import at.bitfire.davdroid.webdav.PreconditionFailedException;
 public class SyncManager {
 	private static final String TAG = "davdroid.SyncManager";
 	
-	private static final int MAX_MULTIGET_RESOURCES = 35;
+	// max. number of local resources which are read at once for uploading
+	private static final int MAX_POPULATE_RESOURCES = 50;
+	
+	/** default number of multi-get REPORTs which may be executed concurrently */
+	public static final int DEFAULT_MULTIGET_IN_FLIGHT = 2;
+	
+	/** default number of PUT/DELETE requests which may be executed concurrently when pushing local changes */
+	public static final int DEFAULT_UPLOADS_IN_FLIGHT = 3;
+	
+	/**
+	 * number of connections which one synchronization uses at most (with default settings): the member listing
+	 * and the multi-gets which are pipelined with it, or the uploads (which are done before, in a phase of their own).
+	 * Parsing (see RemoteCollection) happens after the responses have been read and doesn't hold connections.
+	 */
+	public static final int MAX_CONNECTIONS = Math.max(1 + DEFAULT_MULTIGET_IN_FLIGHT, DEFAULT_UPLOADS_IN_FLIGHT);
 	
 	protected LocalCollection<? extends Resource> local;
 	protected RemoteCollection<? extends Resource> remote;
 	
+	protected int multiGetInFlight = DEFAULT_MULTIGET_IN_FLIGHT;
+	protected int uploadsInFlight = DEFAULT_UPLOADS_IN_FLIGHT;
+	protected MultiGetBatchSize multiGetBatchSize = new MultiGetBatchSize(MultiGetBatchSize.DEFAULT);
+	
 	
 	public SyncManager(LocalCollection<? extends Resource> local, RemoteCollection<? extends Resource> remote) {
 		this.local = local;
 		this.remote = remote;
 	}
+	
+	/**
+	 * Sets the number of multi-get REPORTs which may be in flight while fetched resources are stored locally.
+	 * Limited to the number of connections per route of DavHttpClient (1 = no pipelining).
+	 */
+	public void setMultiGetInFlight(int inFlight) {
+		multiGetInFlight = Math.max(1, Math.min(inFlight, DavHttpClient.MAX_CONNECTIONS_PER_ROUTE));
+	}
+	
+	/**
+	 * Sets the number of PUT/DELETE requests which may be in flight while pushing local changes.
+	 * Limited to the number of connections per route of DavHttpClient (1 = one request after another).
+	 */
+	public void setUploadsInFlight(int inFlight) {
+		uploadsInFlight = Math.max(1, Math.min(inFlight, DavHttpClient.MAX_CONNECTIONS_PER_ROUTE));
+	}
+	
+	/**
+	 * Number of resources per multi-get REPORT. Adapts to the server responses during synchronization,
+	 * so it should be initialized with (and saved as) the last value for the collection.
+	 */
+	public int getMultiGetBatchSize() {
+		return multiGetBatchSize.get();
+	}
+	
+	public void setMultiGetBatchSize(int batchSize) {
+		multiGetBatchSize = new MultiGetBatchSize(batchSize);
+	}
 
 	
+	/**
+	 * Only pushes local changes to the server (upload-only sync, requested by the content provider after local
+	 * modifications). The dirty/deleted flags of the content provider serve as change journal, so repeated edits
+	 * of a resource cause only one upload. Neither the CTag nor the remote members are fetched; remote changes
+	 * are detected by the next regular sync.
+	 */
+	public void upload(SyncResult syncResult) throws URISyntaxException, LocalStorageException, IOException, HttpException {
+		syncResult.stats.numEntries = push();
+	}
+	
 	public void synchronize(boolean manualSync, SyncResult syncResult) throws URISyntaxException, LocalStorageException, IOException, HttpException, DavException {
 		// PHASE 1: push local changes to server
-		int	deletedRemotely = pushDeleted(),
-			addedRemotely = pushNew(),
-			updatedRemotely = pushDirty();
-		
-		syncResult.stats.numEntries = deletedRemotely + addedRemotely + updatedRemotely;
+		syncResult.stats.numEntries = push();
 		
 		// PHASE 2A: check if there's a reason to do a sync with remote (= forced sync or remote CTag changed)
 		boolean fetchCollection = syncResult.stats.numEntries > 0;
@@ -61,74 +117,159 @@ public class SyncManager {
 			String	currentCTag = remote.getCTag(),
 					lastCTag = local.getCTag();
 			Log.d(TAG, "Last local CTag = " + lastCTag + "; current remote CTag = " + currentCTag);
-			if (currentCTag == null || !currentCTag.equals(lastCTag))
-				fetchCollection = true;
+			if (currentCTag != null)
+				fetchCollection = !currentCTag.equals(lastCTag);
+			else {
+				// no CTag, but the sync-token changes with every modification too (RFC 6578)
+				String	currentSyncToken = remote.getSyncToken(),
+						lastSyncToken = local.getSyncToken();
+				Log.d(TAG, "Last local sync-token = " + lastSyncToken + "; current remote sync-token = " + currentSyncToken);
+				fetchCollection = currentSyncToken == null || !currentSyncToken.equals(lastSyncToken);
+			}
 		}
 		
 		if (!fetchCollection) {
 			Log.i(TAG, "No local changes and CTags match, no need to sync");
 			return;
 		}
+		String newSyncToken;
 		
 		// PHASE 2B: detect details of remote changes
-		Log.i(TAG, "Fetching remote resource list");
-		Set<Resource>	remotelyAdded = new HashSet<Resource>(),
-						remotelyUpdated = new HashSet<Resource>();
-		
-		Resource[] remoteResources = remote.getMemberETags();
-		for (Resource remoteResource : remoteResources) {
-			try {
-				Resource localResource = local.findByRemoteName(remoteResource.getName(), false);
-				if (localResource.getETag() == null || !localResource.getETag().equals(remoteResource.getETag()))
-					remotelyUpdated.add(remoteResource);
-			} catch(RecordNotFoundException e) {
-				remotelyAdded.add(remoteResource);
+		// compare with local ETags (in memory, one query for the whole collection) while the listing is being read
+		final RemoteNameIndex localIndex = local.loadRemoteNameIndex();
+		final MultiGetPipeline pipeline = new MultiGetPipeline(remote, multiGetBatchSize, multiGetInFlight);
+		final int[] listedChanges = { 0 };
+		try {
+			// changed resources are already being fetched during the listing, but nothing is stored locally
+			// before the listing is complete, so a failed listing doesn't leave a partially applied state
+			RemoteCollection.ResourceCallback<RuntimeException> compareETags = new RemoteCollection.ResourceCallback<RuntimeException>() {
+				@Override
+				public void onResource(Resource remoteResource) {
+					RemoteNameIndex.Entry localEntry = localIndex.markRemotelyPresent(remoteResource.getName());
+					if (localEntry == null)
+						pipeline.add(remoteResource);
+					else if (localEntry.getETag() == null || !localEntry.getETag().equals(remoteResource.getETag())) {
+						// entities with the same content won't be parsed and stored again
+						remoteResource.setContentDigest(localEntry.getContentDigest());
+						pipeline.add(remoteResource);
+					} else
+						return;
+					listedChanges[0]++;
+				}
+			};
+			
+			// only fetch changes since the last sync-token, if possible (RFC 6578)
+			String[] remotelyRemoved = null;
+			String lastSyncToken = local.getSyncToken();
+			if (lastSyncToken != null && fetchChangedMembers(lastSyncToken, compareETags, listedChanges))
+				remotelyRemoved = remote.getRemovedMemberNames();
+			else {
+				Log.i(TAG, "Fetching remote resource list");
+				remote.getMemberETags(compareETags);
+			}
+			// remember the sync-token that belongs to this listing
+			newSyncToken = remote.getSyncToken();
+			
+			// PHASE 3: pull remaining remote changes from server
+			Log.i(TAG, "Fetching " + listedChanges[0] + " new/updated remote resource(s)");
+			Resource[] batch;
+			while ((batch = pipeline.next()) != null)
+				store(batch, localIndex, syncResult);
+			local.commit();
+			syncResult.stats.numEntries += syncResult.stats.numInserts + syncResult.stats.numUpdates;
+			
+			if (remotelyRemoved != null) {
+				Log.i(TAG, "Removing " + remotelyRemoved.length + " resource(s) that have been removed remotely");
+				for (String name : remotelyRemoved)
+					local.deleteByRemoteName(name);
+			} else {
+				Log.i(TAG, "Removing non-dirty resources that are not present remotely anymore");
+				local.deleteAllExceptRemoteNames();
 			}
+			local.deleteExpired();
+			local.commit();
+		} finally {
+			pipeline.close();
 		}
 
-		// PHASE 3: pull remote changes from server
-		syncResult.stats.numInserts = pullNew(remotelyAdded.toArray(new Resource[0]));
-		syncResult.stats.numUpdates = pullChanged(remotelyUpdated.toArray(new Resource[0]));
-		syncResult.stats.numEntries += syncResult.stats.numInserts + syncResult.stats.numUpdates;
-		
-		Log.i(TAG, "Removing non-dirty resources that are not present remotely anymore");
-		local.deleteAllExceptRemoteNames(remoteResources);
-		local.commit();
-
-		// update collection CTag
+		// update collection CTag and sync-token
 		Log.i(TAG, "Sync complete, fetching new CTag");
 		local.setCTag(remote.getCTag());
+		local.setSyncToken(newSyncToken);
+	}
+	
+	
+	/**
+	 * Fetches the remote members which have changed since the last sync-token and passes them to the callback.
+	 * @param listedChanges	number of changed members which have been passed to the callback so far
+	 * @return true if the changes have been fetched, false if the server didn't accept the sync-token (full listing required)
+	 */
+	private boolean fetchChangedMembers(String syncToken, RemoteCollection.ResourceCallback<RuntimeException> callback, int[] listedChanges) throws URISyntaxException, IOException, HttpException, DavException {
+		try {
+			Log.i(TAG, "Fetching remote changes since last sync-token");
+			remote.getMemberETagsSince(syncToken, callback);
+			return true;
+		} catch(HttpException e) {
+			// 403/409 valid-sync-token error, or sync-collection not supported
+			if (e.getCode() == HttpStatus.SC_UNAUTHORIZED || !(e.isClientError() || e.getCode() == HttpStatus.SC_NOT_IMPLEMENTED))
+				throw e;
+			// changes which have already been listed are being fetched; a full listing would add them again
+			if (listedChanges[0] > 0)
+				throw e;
+			Log.i(TAG, "Server didn't accept sync-token (" + e.getMessage() + "), falling back to full resource list");
+			return false;
+		}
 	}
 	
 	
+	/** @return number of remotely deleted, added and updated resources */
+	private int push() throws URISyntaxException, LocalStorageException, IOException, HttpException {
+		int count = pushDeleted() + pushNew() + pushDirty();
+		
+		// the collection has changed by the uploads (not done by the upload threads because they run concurrently)
+		if (count > 0)
+			remote.invalidateCTag();
+		return count;
+	}
+	
 	private int pushDeleted() throws URISyntaxException, LocalStorageException, IOException, HttpException {
 		int count = 0;
 		long[] deletedIDs = local.findDeleted();
+		Log.i(TAG, "Remotely removing " + deletedIDs.length + " deleted resource(s) (if not changed)");
 		
+		UploadPipeline pipeline = new UploadPipeline(new UploadPipeline.Operation() {
+			@Override
+			public boolean execute(UploadPipeline.Upload upload) throws URISyntaxException, IOException, HttpException {
+				Resource res = upload.getResource();
+				if (res.getName() != null)	// is this resource even present remotely?
+					try {
+						remote.delete(res);
+					} catch(NotFoundException e) {
+						Log.i(TAG, "Locally-deleted resource has already been removed from server");
+					} catch(PreconditionFailedException e) {
+						Log.i(TAG, "Locally-deleted resource has been changed on the server in the meanwhile");
+					}
+				// always delete locally so that the record with the DELETED flag doesn't cause another deletion attempt
+				return true;
+			}
+		}, uploadsInFlight);
 		try {
-			Log.i(TAG, "Remotely removing " + deletedIDs.length + " deleted resource(s) (if not changed)");
-			for (long id : deletedIDs)
+			for (int i = 0; i < deletedIDs.length && !pipeline.hasFailed(); i++) {
+				long id = deletedIDs[i];
 				try {
-					Resource res = local.findById(id, false);
-					if (res.getName() != null)	// is this resource even present remotely?
-						try {
-							remote.delete(res);
-						} catch(NotFoundException e) {
-							Log.i(TAG, "Locally-deleted resource has already been removed from server");
-						} catch(PreconditionFailedException e) {
-							Log.i(TAG, "Locally-deleted resource has been changed on the server in the meanwhile");
-						}
-					
-					// always delete locally so that the record with the DELETED flag doesn't cause another deletion attempt
-					local.delete(res);
-					
-					count++;
+					count += deleteLocally(pipeline.submit(local.findById(id, false)));
 				} catch (RecordNotFoundException e) {
 					Log.wtf(TAG, "Couldn't read locally-deleted record", e);
 				}
+			}
+			count += deleteLocally(pipeline.finish());
 		} finally {
-			local.commit();
+			pipeline.close();
 		}
+		// not in finally: when commitIfFull() has failed, parts of the batch may already be applied, so don't commit again
+		local.commit();
+		// thrown only now, so that the uploads which have completed before the failed one are marked as synchronized
+		pipeline.throwFailure();
 		return count;
 	}
 	
@@ -136,81 +277,122 @@ public class SyncManager {
 		int count = 0;
 		long[] newIDs = local.findNew();
 		Log.i(TAG, "Uploading " + newIDs.length + " new resource(s) (if not existing)");
-		try {
-			for (long id : newIDs)
+		
+		UploadPipeline pipeline = new UploadPipeline(new UploadPipeline.Operation() {
+			@Override
+			public boolean execute(UploadPipeline.Upload upload) throws URISyntaxException, IOException, HttpException {
 				try {
-					Resource res = local.findById(id, true);
-					String eTag = remote.add(res);
-					if (eTag != null)
-						local.updateETag(res, eTag);
-					local.clearDirty(res);
-					count++;
+					upload.setETag(remote.add(upload.getResource()));
+					return true;
 				} catch(PreconditionFailedException e) {
 					Log.i(TAG, "Didn't overwrite existing resource with other content");
 				} catch (ValidationException e) {
 					Log.e(TAG, "Couldn't create entity for adding: " + e.toString());
-				} catch (RecordNotFoundException e) {
-					Log.wtf(TAG, "Couldn't read new record", e);
 				}
+				return false;
+			}
+		}, uploadsInFlight);
+		try {
+			for (int start = 0; start < newIDs.length && !pipeline.hasFailed(); start += MAX_POPULATE_RESOURCES)
+				for (Resource res : populateBatch(newIDs, start))
+					count += markSynchronized(pipeline.submit(res));
+			count += markSynchronized(pipeline.finish());
 		} finally {
-			local.commit();
+			pipeline.close();
 		}
+		// not in finally: when commitIfFull() has failed, parts of the batch may already be applied, so don't commit again
+		local.commit();
+		// thrown only now, so that the uploads which have completed before the failed one are marked as synchronized
+		pipeline.throwFailure();
 		return count;
 	}
 	
+	/**
+	 * Reads (and populates) up to MAX_POPULATE_RESOURCES local resources at once for uploading.
+	 * @return resources with the IDs ids[start], ids[start+1], … which could be read
+	 */
+	private List<? extends Resource> populateBatch(long[] ids, int start) throws LocalStorageException {
+		long[] batch = Arrays.copyOfRange(ids, start, Math.min(start + MAX_POPULATE_RESOURCES, ids.length));
+		try {
+			return local.findById(batch, true);
+		} catch (RecordNotFoundException e) {
+			// a record has been deleted in the meanwhile; read the others one by one
+			Log.w(TAG, "Couldn't read local records at once, reading them one by one", e);
+			List<Resource> resources = new LinkedList<Resource>();
+			for (long id : batch)
+				try {
+					resources.add(local.findById(id, true));
+				} catch (RecordNotFoundException e2) {
+					Log.i(TAG, "Local record " + id + " has been deleted in the meanwhile");
+				}
+			return resources;
+		}
+	}
+	
 	private int pushDirty() throws URISyntaxException, LocalStorageException, IOException, HttpException {
 		int count = 0;
 		long[] dirtyIDs = local.findUpdated();
 		Log.i(TAG, "Uploading " + dirtyIDs.length + " modified resource(s) (if not changed)");
-		try {
-			for (long id : dirtyIDs) {
+		
+		UploadPipeline pipeline = new UploadPipeline(new UploadPipeline.Operation() {
+			@Override
+			public boolean execute(UploadPipeline.Upload upload) throws URISyntaxException, IOException, HttpException {
 				try {
-					Resource res = local.findById(id, true);
-					String eTag = remote.update(res);
-					if (eTag != null)
-						local.updateETag(res, eTag);
-					local.clearDirty(res);
-					count++;
+					upload.setETag(remote.update(upload.getResource()));
+					return true;
 				} catch(PreconditionFailedException e) {
 					Log.i(TAG, "Locally changed resource has been changed on the server in the meanwhile");
 				} catch (ValidationException e) {
 					Log.e(TAG, "Couldn't create entity for updating: " + e.toString());
-				} catch (RecordNotFoundException e) {
-					Log.e(TAG, "Couldn't read dirty record", e);
 				}
+				return false;
 			}
+		}, uploadsInFlight);
+		try {
+			for (int start = 0; start < dirtyIDs.length && !pipeline.hasFailed(); start += MAX_POPULATE_RESOURCES)
+				for (Resource res : populateBatch(dirtyIDs, start))
+					count += markSynchronized(pipeline.submit(res));
+			count += markSynchronized(pipeline.finish());
 		} finally {
-			local.commit();
+			pipeline.close();
 		}
+		// not in finally: when commitIfFull() has failed, parts of the batch may already be applied, so don't commit again
+		local.commit();
+		// thrown only now, so that the uploads which have completed before the failed one are marked as synchronized
+		pipeline.throwFailure();
 		return count;
 	}
 	
-	private int pullNew(Resource[] resourcesToAdd) throws URISyntaxException, LocalStorageException, IOException, HttpException, DavException {
-		int count = 0;
-		Log.i(TAG, "Fetching " + resourcesToAdd.length + " new remote resource(s)");
-		
-		for (Resource[] resources : ArrayUtils.partition(resourcesToAdd, MAX_MULTIGET_RESOURCES))
-			for (Resource res : remote.multiGet(resources)) {
-				Log.d(TAG, "Adding " + res.getName());
-				local.add(res);
-				local.commit();
-				count++;
-			}
-		return count;
+	/** Enqueues storing the new ETags and clearing the dirty flags of uploaded resources. */
+	private int markSynchronized(List<UploadPipeline.Upload> uploads) throws LocalStorageException {
+		for (UploadPipeline.Upload upload : uploads)
+			local.clearDirty(upload.getResource(), upload.getETag());
+		local.commitIfFull();
+		return uploads.size();
 	}
 	
-	private int pullChanged(Resource[] resourcesToUpdate) throws URISyntaxException, LocalStorageException, IOException, HttpException, DavException {
-		int count = 0;
-		Log.i(TAG, "Fetching " + resourcesToUpdate.length + " updated remote resource(s)");
-		
-		for (Resource[] resources : ArrayUtils.partition(resourcesToUpdate, MAX_MULTIGET_RESOURCES))
-			for (Resource res : remote.multiGet(resources)) {
+	/** Enqueues deleting remotely deleted resources from the local collection. */
+	private int deleteLocally(List<UploadPipeline.Upload> uploads) throws LocalStorageException {
+		for (UploadPipeline.Upload upload : uploads)
+			local.delete(upload.getResource());
+		local.commitIfFull();
+		return uploads.size();
+	}
+	
+	/** Stores fetched remote resources locally (new resources are added, known ones updated). */
+	private void store(Resource[] resources, RemoteNameIndex localIndex, SyncResult syncResult) throws LocalStorageException {
+		for (Resource res : resources) {
+			if (localIndex.get(res.getName()) == null) {
+				Log.d(TAG, "Adding " + res.getName());
+				local.add(res);
+				syncResult.stats.numInserts++;
+			} else {
 				Log.i(TAG, "Updating " + res.getName());
 				local.updateByRemoteName(res);
-				local.commit();
-				count++;
+				syncResult.stats.numUpdates++;
 			}
-		return count;
+			local.commitIfFull();
+		}
 	}
 
 }
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.webdav.HttpException;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Uploads (or deletes) local resources to a remote collection. Up to inFlight requests are executed
+ * concurrently in the background, so that the upload doesn't wait for the round trip of every single
+ * request. Completed uploads are returned in submission order, so that the caller can store
+ * their results (ETag, dirty flag) locally in one batch. When an upload fails, no further uploads
+ * are started, but the pending ones are still completed and returned, so that their results can be
+ * stored before the error is thrown by throwFailure().
+ */
+class UploadPipeline implements Closeable {
+	private static final String TAG = "davdroid.UploadPipeline";
+
+	interface Operation {
+		/**
+		 * Executes the request for a single resource (called in a worker thread). Errors that only
+		 * concern this resource (like 412 Precondition Failed) should be handled here.
+		 * @return true if the resource has been transferred and can be marked as synchronized locally,
+		 * 	       false if the local resource has to be kept as it is
+		 */
+		boolean execute(Upload upload) throws URISyntaxException, IOException, HttpException;
+	}
+
+	static class Upload {
+		@Getter final Resource resource;
+		@Getter @Setter String eTag;	// ETag returned by the server, if any
+
+		Upload(Resource resource) {
+			this.resource = resource;
+		}
+	}
+
+	final Operation operation;
+	final int inFlight;
+
+	final ExecutorService executor;
+	final LinkedList<Future<Upload>> pending = new LinkedList<Future<Upload>>();
+
+	// first failed upload; later uploads are not started, but the pending ones are still collected
+	private Exception failure;
+
+
+	UploadPipeline(Operation operation, int inFlight) {
+		this.operation = operation;
+		this.inFlight = inFlight;
+
+		if (inFlight > 1) {
+			// worker threads need the class loader of the sync thread (iCal4j ResourceLoader)
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			executor = Executors.newFixedThreadPool(inFlight, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "davdroid.Upload");
+					thread.setContextClassLoader(classLoader);
+					return thread;
+				}
+			});
+		} else
+			executor = null;		// upload in calling thread
+	}
+
+	/**
+	 * Starts the upload of a resource. If inFlight uploads are pending, waits until the oldest one has completed.
+	 * After an upload has failed, no further uploads are started (see hasFailed()).
+	 * @return uploads which have completed successfully in the meanwhile (in submission order)
+	 */
+	List<Upload> submit(Resource resource) throws InterruptedIOException {
+		List<Upload> completed = new LinkedList<Upload>();
+		if (failure != null)
+			return completed;
+		final Upload upload = new Upload(resource);
+
+		if (executor == null) {
+			try {
+				if (operation.execute(upload))
+					completed.add(upload);
+			} catch (Exception e) {
+				failed(e);
+			}
+			return completed;
+		}
+
+		while (pending.size() >= inFlight || (!pending.isEmpty() && pending.getFirst().isDone()))
+			collect(pending.removeFirst(), completed);
+
+		if (failure == null)
+			pending.add(executor.submit(new Callable<Upload>() {
+				@Override
+				public Upload call() throws Exception {
+					return operation.execute(upload) ? upload : null;
+				}
+			}));
+		return completed;
+	}
+
+	/**
+	 * Waits until all pending uploads have completed (also after an upload has failed, so that the
+	 * results of the successful ones can be stored). Call throwFailure() afterwards.
+	 * @return uploads which have completed successfully (in submission order)
+	 */
+	List<Upload> finish() throws InterruptedIOException {
+		List<Upload> completed = new LinkedList<Upload>();
+		while (!pending.isEmpty())
+			collect(pending.removeFirst(), completed);
+		return completed;
+	}
+
+	/** @return whether an upload has failed (further resources won't be uploaded) */
+	boolean hasFailed() {
+		return failure != null;
+	}
+
+	/** throws the exception of the first failed upload, if there was one */
+	void throwFailure() throws URISyntaxException, IOException, HttpException {
+		if (failure instanceof URISyntaxException)
+			throw (URISyntaxException)failure;
+		else if (failure instanceof IOException)
+			throw (IOException)failure;
+		else if (failure instanceof HttpException)
+			throw (HttpException)failure;
+		else if (failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		else if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			// only uploads which haven't been collected (because the caller has failed) are cancelled
+			for (Future<Upload> future : pending)
+				future.cancel(true);
+			pending.clear();
+			executor.shutdownNow();
+		}
+	}
+
+
+	private void collect(Future<Upload> future, List<Upload> completed) throws InterruptedIOException {
+		try {
+			Upload upload = future.get();
+			if (upload != null)
+				completed.add(upload);
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while waiting for upload");
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload interrupted");
+		} catch (ExecutionException e) {
+			failed(e.getCause());
+		}
+	}
+
+	private void failed(Throwable cause) {
+		Log.w(TAG, "Upload failed, not starting further uploads", cause);
+		if (failure == null)
+			failure = (cause instanceof Exception) ? (Exception)cause : new RuntimeException(cause);
+	}
+}
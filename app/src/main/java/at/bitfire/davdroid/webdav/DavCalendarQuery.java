@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Element;
+import org.simpleframework.xml.Namespace;
+import org.simpleframework.xml.NamespaceList;
+import org.simpleframework.xml.Order;
+import org.simpleframework.xml.Root;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * calendar-query REPORT (RFC 4791 7.8) which asks for the ETags of all events
+ * that overlap a time range.
+ */
+@Root(name="calendar-query")
+@NamespaceList({
+	@Namespace(reference="DAV:"),
+	@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
+})
+@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
+@Order(elements={"prop","filter"})
+public class DavCalendarQuery {
+	@Element
+	DavProp prop;
+
+	@Element
+	Filter filter;
+
+	@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
+	public static class Filter {
+		@Element(name="comp-filter")
+		CompFilter compFilter;
+	}
+
+	@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
+	@Order(elements={"comp-filter","time-range"})
+	public static class CompFilter {
+		@Attribute
+		String name;
+
+		@Element(name="comp-filter",required=false)
+		CompFilter compFilter;
+
+		@Element(name="time-range",required=false)
+		TimeRange timeRange;
+
+		CompFilter(String name) {
+			this.name = name;
+		}
+	}
+
+	@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
+	public static class TimeRange {
+		@Attribute(required=false)
+		String start;
+
+		@Attribute(required=false)
+		String end;
+	}
+
+
+	/**
+	 * @param start	start of the time range (null = unbounded)
+	 * @param end	end of the time range (null = unbounded)
+	 */
+	public static DavCalendarQuery newRequest(Date start, Date end) {
+		DavCalendarQuery query = new DavCalendarQuery();
+
+		query.prop = new DavProp();
+		query.prop.getetag = new DavProp.GetETag();
+
+		CompFilter events = new CompFilter("VEVENT");
+		events.timeRange = new TimeRange();
+		events.timeRange.start = formatUTC(start);
+		events.timeRange.end = formatUTC(end);
+
+		query.filter = new Filter();
+		query.filter.compFilter = new CompFilter("VCALENDAR");
+		query.filter.compFilter.compFilter = events;
+
+		return query;
+	}
+
+	private static String formatUTC(Date date) {
+		if (date == null)
+			return null;
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+}
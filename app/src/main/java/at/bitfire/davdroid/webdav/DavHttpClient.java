@@ -20,11 +20,22 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.syncadapter.DavSyncAdapter;
+import at.bitfire.davdroid.syncadapter.SyncManager;
 
 
 public class DavHttpClient {
 	private final static String TAG = "davdroid.DavHttpClient";
 	
+	// limits per DavHttpClient (shared by all DavSyncAdapters and accounts);
+	// one route has to serve the concurrently synchronized collections of an account
+	// (DavSyncAdapter.MAX_PARALLEL_SYNCS), each of them using up to SyncManager.MAX_CONNECTIONS
+	// connections. More connections to the same server mean more TLS handshakes and a higher
+	// risk of being throttled, so the pool isn't larger than these syncs need.
+	public final static int
+		MAX_CONNECTIONS_PER_ROUTE = DavSyncAdapter.MAX_PARALLEL_SYNCS * SyncManager.MAX_CONNECTIONS,
+		MAX_CONNECTIONS_TOTAL = 2*MAX_CONNECTIONS_PER_ROUTE;
+	
 	private final static RequestConfig defaultRqConfig;
 	private final static Registry<ConnectionSocketFactory> socketFactoryRegistry;
 		
@@ -45,9 +56,8 @@ public class DavHttpClient {
 
 	public static CloseableHttpClient create() {
 		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry,new DummyHostNameResolver());
-		// limits per DavHttpClient (= per DavSyncAdapter extends AbstractThreadedSyncAdapter)
-		connectionManager.setMaxTotal(3);				// max.  3 connections in total
-		connectionManager.setDefaultMaxPerRoute(2);		// max.  2 connections per host
+		connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
 
 		HttpClientBuilder builder = HttpClients.custom()
 				.useSystemProperties()
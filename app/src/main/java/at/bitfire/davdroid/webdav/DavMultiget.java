@@ -7,42 +7,50 @@
  ******************************************************************************/
 package at.bitfire.davdroid.webdav;
 
-import org.simpleframework.xml.Element;
-import org.simpleframework.xml.ElementList;
-import org.simpleframework.xml.Order;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.http.util.ByteArrayBuffer;
+import org.apache.http.util.EncodingUtils;
 
-import java.util.ArrayList;
-import java.util.List;
-
-@Order(elements={"prop","href"})
+/**
+ * addressbook-multiget (RFC 6352 8.7) and calendar-multiget (RFC 4791 7.9) REPORT bodies. As only
+ * the hrefs vary between requests, the XML is written directly instead of being serialized
+ * from an object graph.
+ */
 public class DavMultiget {
 	public enum Type {
 		ADDRESS_BOOK,
 		CALENDAR
 	}
-	
-	@Element
-	DavProp prop;
-	
-	@ElementList(inline=true)
-	List<DavHref> hrefs;
-	
-	
-	public static DavMultiget newRequest(Type type, String names[]) {
-		DavMultiget multiget = (type == Type.ADDRESS_BOOK) ? new DavAddressbookMultiget() : new DavCalendarMultiget(); 
-		
-		multiget.prop = new DavProp();
-		multiget.prop.getetag = new DavProp.GetETag();
-		
-		if (type == Type.ADDRESS_BOOK)
-			multiget.prop.addressData = new DavProp.AddressData();
-		else if (type == Type.CALENDAR)
-			multiget.prop.calendarData = new DavProp.CalendarData();
 
-		multiget.hrefs = new ArrayList<DavHref>(names.length);
-		for (String name : names)
-			multiget.hrefs.add(new DavHref(name));
-		
-		return multiget;
+	private static final byte[]
+		ADDRESS_BOOK_HEAD = EncodingUtils.getAsciiBytes(
+			"<CD:addressbook-multiget xmlns=\"DAV:\" xmlns:CD=\"urn:ietf:params:xml:ns:carddav\">" +
+			"<prop><getetag/><CD:address-data/></prop>"),
+		ADDRESS_BOOK_TAIL = EncodingUtils.getAsciiBytes("</CD:addressbook-multiget>"),
+		CALENDAR_HEAD = EncodingUtils.getAsciiBytes(
+			"<C:calendar-multiget xmlns=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:caldav\">" +
+			"<prop><getetag/><C:calendar-data/></prop>"),
+		CALENDAR_TAIL = EncodingUtils.getAsciiBytes("</C:calendar-multiget>"),
+		HREF_START = EncodingUtils.getAsciiBytes("<href>"),
+		HREF_END = EncodingUtils.getAsciiBytes("</href>");
+
+
+	/**
+	 * Writes a multi-get request for the given hrefs (UTF-8) into the buffer. The buffer is cleared before.
+	 */
+	public static void writeRequest(Type type, String hrefs[], ByteArrayBuffer buffer) {
+		buffer.clear();
+		append(buffer, (type == Type.ADDRESS_BOOK) ? ADDRESS_BOOK_HEAD : CALENDAR_HEAD);
+		for (String href : hrefs) {
+			append(buffer, HREF_START);
+			// escapeXml() replaces non-ASCII characters by character references, so the result is plain ASCII
+			append(buffer, EncodingUtils.getAsciiBytes(StringEscapeUtils.escapeXml(href)));
+			append(buffer, HREF_END);
+		}
+		append(buffer, (type == Type.ADDRESS_BOOK) ? ADDRESS_BOOK_TAIL : CALENDAR_TAIL);
+	}
+
+	private static void append(ByteArrayBuffer buffer, byte[] data) {
+		buffer.append(data, 0, data.length);
 	}
 }
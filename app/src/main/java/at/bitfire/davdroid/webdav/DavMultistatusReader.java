@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import org.simpleframework.xml.Serializer;
+import org.simpleframework.xml.stream.InputNode;
+import org.simpleframework.xml.stream.NodeBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import at.bitfire.davdroid.ParserContext;
+import lombok.Getter;
+
+/**
+ * Streaming reader for Multi-Status responses. The XML is pulled from the input stream
+ * (by Android's XmlPullParser) element by element; every <response> is mapped to a {@link DavResponse}
+ * and passed to the callback as soon as it is complete, so that only one <response> has to be
+ * kept in memory instead of the whole Multi-Status object graph.
+ */
+class DavMultistatusReader<E extends Exception> {
+
+	interface ResponseCallback<E extends Exception> {
+		void onResponse(DavResponse response) throws IOException, DavException, E;
+	}
+
+	final ResponseCallback<E> callback;
+	final Serializer serializer = ParserContext.get().getSerializer();
+
+	// new sync-token of a sync-collection REPORT (RFC 6578), available after read()
+	@Getter String syncToken;
+
+	// number of <response> elements, available after read()
+	@Getter int responseCount;
+
+
+	DavMultistatusReader(ResponseCallback<E> callback) {
+		this.callback = callback;
+	}
+
+	void read(InputStream in) throws IOException, DavException, E {
+		InputNode multiStatus = parse(in);
+
+		DavResponse response;
+		while ((response = nextResponse(multiStatus)) != null) {
+			responseCount++;
+			callback.onResponse(response);
+		}
+	}
+
+
+	private static InputNode parse(InputStream in) throws IOException, DavException {
+		InputNode multiStatus;
+		try {
+			multiStatus = NodeBuilder.read(in);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DavException("Couldn't parse Multi-Status response", e);
+		}
+		if (!"multistatus".equals(multiStatus.getName()))
+			throw new DavException("Expected Multi-Status response, got <" + multiStatus.getName() + ">");
+		return multiStatus;
+	}
+
+	/**
+	 * Reads child elements of the <multistatus> until the next <response> is complete.
+	 * @return next <response>, or null if the end of the <multistatus> has been reached
+	 */
+	private DavResponse nextResponse(InputNode multiStatus) throws IOException, DavException {
+		try {
+			InputNode node;
+			while ((node = multiStatus.getNext()) != null) {
+				if ("response".equals(node.getName()))
+					return serializer.read(DavResponse.class, node, false);
+				else if ("sync-token".equals(node.getName()))
+					syncToken = node.getValue();
+				else
+					node.skip();
+			}
+			return null;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DavException("Couldn't parse Multi-Status response", e);
+		}
+	}
+}
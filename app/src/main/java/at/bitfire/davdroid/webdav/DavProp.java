@@ -70,6 +70,17 @@ public class DavProp {
 	}
 	
 	
+	/* RFC 6578 Collection Synchronization for WebDAV */
+	
+	@Element(required=false,name="sync-token")
+	SyncToken syncToken;
+	
+	public static class SyncToken {
+		@Text(required=false)
+		@Getter private String token;
+	}
+	
+	
 	/* RFC 5397 WebDAV Current Principal Extension */
 	
 	@Element(required=false,name="current-user-principal")
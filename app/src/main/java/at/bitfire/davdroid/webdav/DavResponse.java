@@ -20,6 +20,10 @@ public class DavResponse {
 	@Element
 	@Getter DavHref href;
 
-	@ElementList(inline=true)
+	@ElementList(inline=true,required=false)
 	@Getter List<DavPropstat> propstat;
+	
+	// only used for members which have been removed (sync-collection REPORT, RFC 6578)
+	@Element(required=false)
+	@Getter String status;
 }
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import org.simpleframework.xml.Element;
+import org.simpleframework.xml.Namespace;
+import org.simpleframework.xml.Order;
+import org.simpleframework.xml.Root;
+
+@Namespace(reference="DAV:")
+@Root(name="sync-collection")
+@Order(elements={"sync-token","sync-level","prop"})
+public class DavSyncCollection {
+	@Element(name="sync-token",required=false)
+	String syncToken;
+	
+	@Element(name="sync-level")
+	String syncLevel = "1";
+	
+	@Element
+	DavProp prop;
+	
+	
+	public static DavSyncCollection newRequest(String syncToken) {
+		DavSyncCollection syncCollection = new DavSyncCollection();
+		syncCollection.syncToken = syncToken;
+		
+		syncCollection.prop = new DavProp();
+		syncCollection.prop.getetag = new DavProp.GetETag();
+		
+		return syncCollection;
+	}
+}
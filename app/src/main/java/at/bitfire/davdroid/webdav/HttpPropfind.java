@@ -10,13 +10,16 @@ package at.bitfire.davdroid.webdav;
 import android.util.Log;
 
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBaseHC4;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntityHC4;
 import org.simpleframework.xml.Serializer;
-import org.simpleframework.xml.core.Persister;
 
 import java.io.StringWriter;
 import java.net.URI;
+import java.util.EnumMap;
 import java.util.LinkedList;
+import java.util.Map;
+
+import at.bitfire.davdroid.ParserContext;
 
 public class HttpPropfind extends HttpEntityEnclosingRequestBaseHC4 {
 	private static final String TAG = "davdroid.HttpPropfind";
@@ -29,10 +32,15 @@ public class HttpPropfind extends HttpEntityEnclosingRequestBaseHC4 {
 		CARDDAV_COLLECTIONS,
 		CALDAV_COLLECTIONS,
 		COLLECTION_CTAG,
+		MEMBERS_CTAG,
 		MEMBERS_ETAG
 	}
 
 	
+	// request bodies don't change for a given mode, so they're serialized only once
+	private static final Map<Mode, byte[]> bodies = new EnumMap<Mode, byte[]>(Mode.class);
+
+	
 	HttpPropfind(URI uri) {
 		setURI(uri);
 	}
@@ -40,10 +48,54 @@ public class HttpPropfind extends HttpEntityEnclosingRequestBaseHC4 {
 	HttpPropfind(URI uri, Mode mode) {
 		this(uri);
 
+		byte[] body = getBody(mode);
+		if (body == null) {
+			Log.e(TAG, "Couldn't prepare PROPFIND request for " + uri);
+			abort();
+			return;
+		}
+		
+		setHeader("Content-Type", "text/xml; charset=UTF-8");
+		setHeader("Accept", "text/xml");
+		setHeader("Depth", String.valueOf(getDepth(mode)));
+		setEntity(new ByteArrayEntityHC4(body));
+	}
+	
+	/** @return request body for the given mode (serialized only once, must not be modified) or null if it couldn't be created */
+	private static byte[] getBody(Mode mode) {
+		synchronized(bodies) {
+			byte[] body = bodies.get(mode);
+			if (body == null) {
+				try {
+					Serializer serializer = ParserContext.get().getSerializer();
+					StringWriter writer = new StringWriter();
+					serializer.write(newPropfind(mode), writer);
+					body = writer.toString().getBytes("UTF-8");
+					bodies.put(mode, body);
+				} catch(Exception ex) {
+					Log.e(TAG, "Couldn't serialize PROPFIND request", ex);
+				}
+			}
+			return body;
+		}
+	}
+	
+	private static int getDepth(Mode mode) {
+		switch (mode) {
+		case CARDDAV_COLLECTIONS:
+		case CALDAV_COLLECTIONS:
+		case MEMBERS_CTAG:
+		case MEMBERS_ETAG:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+	
+	static DavPropfind newPropfind(Mode mode) {
 		DavPropfind propfind = new DavPropfind();
 		propfind.prop = new DavProp();
 		
-		int depth = 0;
 		switch (mode) {
 		case CURRENT_USER_PRINCIPAL:
 			propfind.prop.currentUserPrincipal = new DavProp.CurrentUserPrincipal();
@@ -53,7 +105,6 @@ public class HttpPropfind extends HttpEntityEnclosingRequestBaseHC4 {
 			propfind.prop.calendarHomeSet = new DavProp.CalendarHomeSet();
 			break;
 		case CARDDAV_COLLECTIONS:
-			depth = 1;
 			propfind.prop.displayname = new DavProp.DisplayName();
 			propfind.prop.resourcetype = new DavProp.ResourceType();
 			propfind.prop.currentUserPrivilegeSet = new LinkedList<DavProp.Privilege>();
@@ -61,7 +112,6 @@ public class HttpPropfind extends HttpEntityEnclosingRequestBaseHC4 {
 			propfind.prop.supportedAddressData = new LinkedList<DavProp.AddressDataType>();
 			break;
 		case CALDAV_COLLECTIONS:
-			depth = 1;
 			propfind.prop.displayname = new DavProp.DisplayName();
 			propfind.prop.resourcetype = new DavProp.ResourceType();
 			propfind.prop.currentUserPrivilegeSet = new LinkedList<DavProp.Privilege>();
@@ -72,27 +122,19 @@ public class HttpPropfind extends HttpEntityEnclosingRequestBaseHC4 {
 			break;
 		case COLLECTION_CTAG:
 			propfind.prop.getctag = new DavProp.GetCTag(); 
+			propfind.prop.syncToken = new DavProp.SyncToken();
+			break;
+		case MEMBERS_CTAG:
+			propfind.prop.getctag = new DavProp.GetCTag();
+			propfind.prop.syncToken = new DavProp.SyncToken();
 			break;
 		case MEMBERS_ETAG:
-			depth = 1;
 			propfind.prop.getctag = new DavProp.GetCTag();
+			propfind.prop.syncToken = new DavProp.SyncToken();
 			propfind.prop.getetag = new DavProp.GetETag();
 			break;
 		}
-		
-		try {
-			Serializer serializer = new Persister();
-			StringWriter writer = new StringWriter();
-			serializer.write(propfind, writer);
-		
-			setHeader("Content-Type", "text/xml; charset=UTF-8");
-			setHeader("Accept", "text/xml");
-			setHeader("Depth", String.valueOf(depth));
-			setEntity(new StringEntity(writer.toString(), "UTF-8"));
-		} catch(Exception ex) {
-			Log.e(TAG, "Couldn't prepare PROPFIND request for " + uri, ex);
-			abort();
-		}
+		return propfind;
 	}
 
 	@Override
@@ -9,6 +9,7 @@ package at.bitfire.davdroid.webdav;
 
 import android.util.Log;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBaseHC4;
 import org.apache.http.entity.StringEntity;
 
@@ -26,11 +27,11 @@ public class HttpReport extends HttpEntityEnclosingRequestBaseHC4 {
 	}
 
 	HttpReport(URI uri, String entity) {
-		this(uri);
-		
-		setHeader("Content-Type", "text/xml; charset=UTF-8");
-		setHeader("Accept", "text/xml");
-		setHeader("Depth", "0");
+		this(uri, entity, 0);
+	}
+	
+	HttpReport(URI uri, String entity, int depth) {
+		this(uri, (HttpEntity)null, depth);
 
         try {
             setEntity(new StringEntity(entity, "UTF-8"));
@@ -38,6 +39,16 @@ public class HttpReport extends HttpEntityEnclosingRequestBaseHC4 {
             Log.wtf(TAG, "String entity doesn't support UTF-8");
         }
 	}
+	
+	/** @param entity	request body (UTF-8 encoded XML) */
+	HttpReport(URI uri, HttpEntity entity, int depth) {
+		this(uri);
+		
+		setHeader("Content-Type", "text/xml; charset=UTF-8");
+		setHeader("Accept", "text/xml");
+		setHeader("Depth", String.valueOf(depth));
+		setEntity(entity);
+	}
 
 	@Override
 	public String getMethod() {
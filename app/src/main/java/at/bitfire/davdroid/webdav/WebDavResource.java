@@ -32,9 +32,9 @@ import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProviderHC4;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicLineParserHC4;
+import org.apache.http.util.ByteArrayBuffer;
 import org.apache.http.util.EntityUtilsHC4;
 import org.simpleframework.xml.Serializer;
-import org.simpleframework.xml.core.Persister;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,12 +42,14 @@ import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import at.bitfire.davdroid.ParserContext;
 import at.bitfire.davdroid.URIUtils;
 import at.bitfire.davdroid.resource.Event;
 import at.bitfire.davdroid.webdav.DavProp.Comp;
@@ -65,12 +67,15 @@ import lombok.ToString;
 public class WebDavResource {
 	private static final String TAG = "davdroid.WebDavResource";
 	
+	// max. number of sync-collection REPORTs to fetch a truncated result
+	private static final int MAX_SYNC_COLLECTION_REQUESTS = 100;
+	
 	public enum Property {
 		CURRENT_USER_PRINCIPAL,							// resource detection
 		ADDRESSBOOK_HOMESET, CALENDAR_HOMESET,
 		CONTENT_TYPE, READ_ONLY,						// WebDAV (common)
 		DISPLAY_NAME, DESCRIPTION, ETAG,
-		IS_COLLECTION, CTAG,							// collections
+		IS_COLLECTION, CTAG, SYNC_TOKEN,				// collections
 		IS_CALENDAR, COLOR, TIMEZONE, 					// CalDAV
 		IS_ADDRESSBOOK, VCARD_VERSION					// CardDAV
 	}
@@ -78,6 +83,14 @@ public class WebDavResource {
 		ADD_DONT_OVERWRITE,
 		UPDATE_DONT_OVERWRITE
 	}
+	
+	/**
+	 * Receives members of a collection while the Multi-Status response is being read,
+	 * so that they don't have to be collected in {@link #getMembers()}.
+	 */
+	public interface MemberCallback<E extends Exception> {
+		void onMember(WebDavResource member) throws IOException, E;
+	}
 
 	// location of this resource
 	@Getter protected URI location;
@@ -92,6 +105,10 @@ public class WebDavResource {
 	
 	// list of members (only for collections)
 	@Getter protected List<WebDavResource> members;
+	// list of members which have been removed since the last sync-token (only after syncCollection)
+	@Getter protected List<WebDavResource> removedMembers;
+	// whether the server has truncated the last Multi-Status response (507 for the request URI, RFC 6578 3.6)
+	protected boolean resultTruncated;
 
 	// content (available after GET)
 	@Getter protected byte[] content;
@@ -130,6 +147,18 @@ public class WebDavResource {
 		location = parent.location;
 	}
 
+	/**
+	 * Creates a copy of this resource which has its own HTTP context (with the same credentials
+	 * and authentication cache), so that requests can be executed concurrently to the original.
+	 */
+	public WebDavResource fork() {
+		WebDavResource fork = new WebDavResource(this);
+		fork.context = HttpClientContext.create();
+		fork.context.setCredentialsProvider(context.getCredentialsProvider());
+		fork.context.setAuthCache(context.getAuthCache());
+		return fork;
+	}
+
 	public WebDavResource(WebDavResource parent, URI url) {
 		this(parent);
 		location = parent.location.resolve(url);
@@ -230,10 +259,20 @@ public class WebDavResource {
 	public String getCTag() {
 		return properties.get(Property.CTAG);
 	}
+	public void setCTag(String cTag) {
+		properties.put(Property.CTAG, cTag);
+	}
 	public void invalidateCTag() {
 		properties.remove(Property.CTAG);
 	}
 	
+	public String getSyncToken() {
+		return properties.get(Property.SYNC_TOKEN);
+	}
+	public void setSyncToken(String syncToken) {
+		properties.put(Property.SYNC_TOKEN, syncToken);
+	}
+	
 	public String getETag() {
 		return properties.get(Property.ETAG);
 	}
@@ -263,6 +302,15 @@ public class WebDavResource {
 	/* collection operations */
 	
 	public void propfind(HttpPropfind.Mode mode) throws URISyntaxException, IOException, DavException, HttpException {
+		this.<RuntimeException>propfind(mode, null);
+	}
+	
+	/**
+	 * Executes a PROPFIND request.
+	 * @param callback	receives every member as soon as it has been read from the response
+	 * 					(members are collected in getMembers() if null)
+	 */
+	public <E extends Exception> void propfind(HttpPropfind.Mode mode, MemberCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
 		CloseableHttpResponse response = null;
 		
 		// processMultiStatus() requires knowledge of the actual content location,
@@ -285,13 +333,22 @@ public class WebDavResource {
 		
 		try {
 			checkResponse(response);		// will also handle Content-Location
-			processMultiStatus(response);
+			processMultiStatus(response, callback);
 		} finally {
 			response.close();
 		}
 	}
 
 	public void multiGet(DavMultiget.Type type, String[] names) throws URISyntaxException, IOException, DavException, HttpException {
+		this.<RuntimeException>multiGet(type, names, null);
+	}
+	
+	/**
+	 * Fetches the given members by a multi-get REPORT.
+	 * @param callback	receives every member as soon as it has been read from the response
+	 * 					(members are collected in getMembers() if null)
+	 */
+	public <E extends Exception> void multiGet(DavMultiget.Type type, String[] names, MemberCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
 		CloseableHttpResponse response = null;
 		
 		// processMultiStatus() requires knowledge of the actual content location,
@@ -304,24 +361,126 @@ public class WebDavResource {
 				// name may also contain ":", so prepend "./" because even the non-quoting URI constructor parses after constructing
 				// DAVdroid ensures that collections always have a trailing slash, so "./" won't go down in directory hierarchy
 				hrefs.add(location.resolve(new URI(null, null, "./" + name, null)).getRawPath());
-			DavMultiget multiget = DavMultiget.newRequest(type, hrefs.toArray(new String[0]));
+			ByteArrayBuffer body = ParserContext.get().getRequestBuffer();
+			DavMultiget.writeRequest(type, hrefs.toArray(new String[0]), body);
+	
+			// submit REPORT request
+			HttpReport report = new HttpReport(location, new ByteArrayEntityHC4(body.buffer(), 0, body.length()), 0);
+			response = httpClient.execute(report, context);
+			
+			if (response.getStatusLine().getStatusCode()/100 == 3) {
+				location = DavRedirectStrategy.getLocation(report, response, context);
+				Log.i(TAG, "Redirection on REPORT multi-get; trying again at new content URL: " + location);
+				
+				// don't forget to throw away the unneeded response content
+				HttpEntity entity = response.getEntity();
+				if (entity != null) { @Cleanup InputStream content = entity.getContent(); }
+			} else
+				break;		// answer was NOT a redirection, continue
+		}
+		ParserContext.get().trimRequestBuffer();
+		if (response == null)
+			throw new DavNoContentException();
+		
+		try {
+			checkResponse(response);		// will also handle Content-Location
+			processMultiStatus(response, callback);
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Fetches the members which have been changed or removed since the given sync-token
+	 * by a sync-collection REPORT (RFC 6578). Changed members are available by getMembers(),
+	 * removed members by getRemovedMembers() and the new sync-token by getSyncToken() afterwards.
+	 * Results which have been truncated by the server are continued by further REPORTs.
+	 * @param syncToken	sync-token of the last synchronization
+	 * @throws HttpException when the server doesn't support sync-collection or doesn't accept the sync-token (usually 403 or 409)
+	 */
+	public void syncCollection(String syncToken) throws URISyntaxException, IOException, DavException, HttpException {
+		this.<RuntimeException>syncCollection(syncToken, null);
+	}
+	
+	/**
+	 * Like {@link #syncCollection(String)}, but changed members are passed to the callback
+	 * as soon as they have been read from the response (instead of being collected in getMembers()).
+	 */
+	public <E extends Exception> void syncCollection(String syncToken, MemberCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		List<WebDavResource>	allMembers = new LinkedList<WebDavResource>(),
+								allRemovedMembers = new LinkedList<WebDavResource>();
+		
+		// when the server truncates the result, the remaining changes are fetched with the returned sync-token (RFC 6578 3.6)
+		for (int i = MAX_SYNC_COLLECTION_REQUESTS; ; i--) {
+			DavSyncCollection syncCollection = DavSyncCollection.newRequest(syncToken);
 			
 			StringWriter writer = new StringWriter();
 			try {
-				Serializer serializer = new Persister();
-				serializer.write(multiget, writer);
+				Serializer serializer = ParserContext.get().getSerializer();
+				serializer.write(syncCollection, writer);
 			} catch (Exception ex) {
-				Log.e(TAG, "Couldn't create XML multi-get request", ex);
-				throw new DavException("Couldn't create multi-get request");
+				Log.e(TAG, "Couldn't create XML sync-collection request", ex);
+				throw new DavException("Couldn't create sync-collection request");
 			}
+			
+			report("sync-collection", writer.toString(), 0, false, callback);
+			allMembers.addAll(members);
+			if (removedMembers != null)
+				allRemovedMembers.addAll(removedMembers);
+			
+			if (!resultTruncated)
+				break;
+			
+			String newSyncToken = getSyncToken();
+			if (newSyncToken == null || newSyncToken.equals(syncToken) || i <= 1)
+				// don't return an incomplete result, otherwise the new sync-token would be stored and the remaining changes lost
+				throw new DavException("Truncated sync-collection result can't be continued");
+			Log.i(TAG, "Server has truncated sync-collection result, continuing with new sync-token");
+			syncToken = newSyncToken;
+		}
+		
+		members = allMembers;
+		removedMembers = allRemovedMembers;
+	}
+	
+	/**
+	 * Fetches the ETags of all member events which overlap the given time range (calendar-query REPORT, RFC 4791).
+	 * Members are passed to the callback as soon as they have been read from the response.
+	 * @param start	start of the time range (null = unbounded)
+	 * @param end	end of the time range (null = unbounded)
+	 */
+	public <E extends Exception> void calendarQuery(Date start, Date end, MemberCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		DavCalendarQuery query = DavCalendarQuery.newRequest(start, end);
+		
+		StringWriter writer = new StringWriter();
+		try {
+			Serializer serializer = ParserContext.get().getSerializer();
+			serializer.write(query, writer);
+		} catch (Exception ex) {
+			Log.e(TAG, "Couldn't create XML calendar-query request", ex);
+			throw new DavException("Couldn't create calendar-query request");
+		}
+		
+		// no events in the time range: empty Multi-Status (without sync-token)
+		report("calendar-query", writer.toString(), 1, true, callback);
+	}
 	
-			// submit REPORT request
-			HttpReport report = new HttpReport(location, writer.toString());
+	/**
+	 * sends a REPORT (following redirections) and processes the Multi-Status response
+	 * @param emptyAllowed whether an empty Multi-Status is a valid answer (otherwise, DavNoContentException is thrown)
+	 */
+	private <E extends Exception> void report(String type, String entity, int depth, boolean emptyAllowed, MemberCallback<E> callback) throws URISyntaxException, IOException, DavException, HttpException, E {
+		CloseableHttpResponse response = null;
+		
+		// processMultiStatus() requires knowledge of the actual content location,
+		// so we have to handle redirections manually and create a new request for the new location
+		for (int i = context.getRequestConfig().getMaxRedirects(); i > 0; i--) {
+			HttpReport report = new HttpReport(location, entity, depth);
 			response = httpClient.execute(report, context);
 			
 			if (response.getStatusLine().getStatusCode()/100 == 3) {
 				location = DavRedirectStrategy.getLocation(report, response, context);
-				Log.i(TAG, "Redirection on REPORT multi-get; trying again at new content URL: " + location);
+				Log.i(TAG, "Redirection on REPORT " + type + "; trying again at new content URL: " + location);
 				
 				// don't forget to throw away the unneeded response content
 				HttpEntity entity = response.getEntity();
@@ -334,7 +493,7 @@ public class WebDavResource {
 		
 		try {
 			checkResponse(response);		// will also handle Content-Location
-			processMultiStatus(response);
+			processMultiStatus(response, emptyAllowed, callback);
 		} finally {
 			response.close();
 		}
@@ -363,8 +522,13 @@ public class WebDavResource {
 	
 	// returns the ETag of the created/updated resource, if available (null otherwise)
 	public String put(byte[] data, PutMode mode) throws URISyntaxException, IOException, HttpException {
+		return put(new ByteArrayEntityHC4(data), mode);
+	}
+	
+	// like put(byte[], PutMode); the entity should be repeatable so that the request can be sent again on authentication challenges
+	public String put(HttpEntity entity, PutMode mode) throws URISyntaxException, IOException, HttpException {
 		HttpPutHC4 put = new HttpPutHC4(location);
-		put.setEntity(new ByteArrayEntityHC4(data));
+		put.setEntity(entity);
 
 		switch (mode) {
 		case ADD_DONT_OVERWRITE:
@@ -440,7 +604,16 @@ public class WebDavResource {
 		}
 	}
 	
-	protected void processMultiStatus(HttpResponse response) throws IOException, HttpException, DavException {
+	protected <E extends Exception> void processMultiStatus(HttpResponse response, final MemberCallback<E> callback) throws IOException, HttpException, DavException, E {
+		processMultiStatus(response, false, callback);
+	}
+	
+	/**
+	 * Processes a Multi-Status response.
+	 * @param emptyAllowed whether a response without any &lt;response&gt; is valid (like for a calendar-query without matches);
+	 *                     sync-collection responses with sync-token may always be empty ("no changes")
+	 */
+	protected <E extends Exception> void processMultiStatus(HttpResponse response, boolean emptyAllowed, final MemberCallback<E> callback) throws IOException, HttpException, DavException, E {
 		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_MULTI_STATUS)
 			throw new DavNoMultiStatusException();
 		
@@ -449,145 +622,185 @@ public class WebDavResource {
 			throw new DavNoContentException();
 		@Cleanup InputStream content = entity.getContent();
 		
-		DavMultistatus multiStatus;
-		try {
-			Serializer serializer = new Persister();
-			multiStatus = serializer.read(DavMultistatus.class, content, false);
-		} catch (Exception ex) {
-			throw new DavException("Couldn't parse Multi-Status response on REPORT multi-get", ex);
-		}
-
-		if (multiStatus.response == null)	// empty response
-			throw new DavNoContentException();
+		resultTruncated = false;
 		
 		// member list will be built from response
-		List<WebDavResource> members = new LinkedList<WebDavResource>();
+		final List<WebDavResource> members = new LinkedList<WebDavResource>(),
+								   removedMembers = new LinkedList<WebDavResource>();
 		
-		// iterate through all resources (either ourselves or member)
-		for (DavResponse singleResponse : multiStatus.response) {
-			URI href;
-			try {
-				href = location.resolve(URIUtils.parseURI(singleResponse.getHref().href, false));
-			} catch(Exception ex) {
-				Log.w(TAG, "Ignoring illegal member URI in multi-status response", ex);
-				continue;
+		// process every <response> (either about ourselves or a member) as soon as it has been read
+		DavMultistatusReader<E> reader = new DavMultistatusReader<E>(new DavMultistatusReader.ResponseCallback<E>() {
+			@Override
+			public void onResponse(DavResponse singleResponse) throws IOException, E {
+				WebDavResource member = processResponse(singleResponse, removedMembers);
+				if (member != null) {
+					if (callback != null)
+						callback.onMember(member);
+					else
+						members.add(member);
+				}
 			}
-			Log.d(TAG, "Processing multi-status element: " + href);
+		});
+		reader.read(content);
 
-			// process known properties
-			HashMap<Property, String> properties = new HashMap<Property, String>();
-			List<String> supportedComponents = null;
-			byte[] data = null;
+		if (reader.getSyncToken() != null)
+			// sync-collection REPORT: an empty response means "no changes"
+			properties.put(Property.SYNC_TOKEN, reader.getSyncToken());
+		else if (reader.getResponseCount() == 0 && !emptyAllowed)	// empty response
+			throw new DavNoContentException();
+		
+		this.members = members;
+		this.removedMembers = (reader.getSyncToken() != null) ? removedMembers : null;
+	}
+	
+	/** compares two URIs while ignoring a trailing slash (collections may be referenced with or without) */
+	private static boolean isSameResource(URI a, URI b) {
+		return StringUtils.removeEnd(a.normalize().getRawPath(), "/").equals(StringUtils.removeEnd(b.normalize().getRawPath(), "/")) &&
+			StringUtils.equalsIgnoreCase(a.getHost(), b.getHost());
+	}
+	
+	/**
+	 * Processes a single <response> of a Multi-Status: properties about ourselves are applied directly,
+	 * members which have been removed (sync-collection) are added to removedMembers.
+	 * @return member which is described by the response, or null if the response is not about a (present) member
+	 */
+	private WebDavResource processResponse(DavResponse singleResponse, List<WebDavResource> removedMembers) {
+		URI href;
+		try {
+			href = location.resolve(URIUtils.parseURI(singleResponse.getHref().href, false));
+		} catch(Exception ex) {
+			Log.w(TAG, "Ignoring illegal member URI in multi-status response", ex);
+			return null;
+		}
+		Log.d(TAG, "Processing multi-status element: " + href);
+		
+		if (singleResponse.getStatus() != null) {
+			StatusLine status = BasicLineParserHC4.parseStatusLine(singleResponse.getStatus(), new BasicLineParserHC4());
+			if (status.getStatusCode() == HttpStatus.SC_NOT_FOUND)
+				// members which have been removed since the last sync-token (RFC 6578 3.5.2)
+				removedMembers.add(new WebDavResource(this, href));
+			else if (status.getStatusCode() == HttpStatus.SC_INSUFFICIENT_STORAGE && isSameResource(href, location))
+				// result has been truncated by the server (RFC 6578 3.6)
+				resultTruncated = true;
+			return null;
+		}
+		if (singleResponse.getPropstat() == null)
+			return null;
 
-			for (DavPropstat singlePropstat : singleResponse.getPropstat()) {
-				StatusLine status = BasicLineParserHC4.parseStatusLine(singlePropstat.status, new BasicLineParserHC4());
-				
-				// ignore information about missing properties etc.
-				if (status.getStatusCode()/100 != 1 && status.getStatusCode()/100 != 2)
-					continue;
-				DavProp prop = singlePropstat.prop;
+		// process known properties
+		HashMap<Property, String> properties = new HashMap<Property, String>();
+		List<String> supportedComponents = null;
+		byte[] data = null;
 
-				if (prop.currentUserPrincipal != null && prop.currentUserPrincipal.getHref() != null)
-					properties.put(Property.CURRENT_USER_PRINCIPAL, prop.currentUserPrincipal.getHref().href);
-				
-				if (prop.currentUserPrivilegeSet != null) {
-					// privilege info available
-					boolean mayAll = false,
-							mayBind = false,
-							mayUnbind = false,
-							mayWrite = false,
-							mayWriteContent = false;
-					for (DavProp.Privilege privilege : prop.currentUserPrivilegeSet) {
-						if (privilege.getAll() != null) mayAll = true;
-						if (privilege.getBind() != null) mayBind = true;
-						if (privilege.getUnbind() != null) mayUnbind = true;
-						if (privilege.getWrite() != null) mayWrite = true;
-						if (privilege.getWriteContent() != null) mayWriteContent = true;
-					}
-					if (!mayAll && !mayWrite && !(mayWriteContent && mayBind && mayUnbind))
-						properties.put(Property.READ_ONLY, "1");
+		for (DavPropstat singlePropstat : singleResponse.getPropstat()) {
+			StatusLine status = BasicLineParserHC4.parseStatusLine(singlePropstat.status, new BasicLineParserHC4());
+			
+			// ignore information about missing properties etc.
+			if (status.getStatusCode()/100 != 1 && status.getStatusCode()/100 != 2)
+				continue;
+			DavProp prop = singlePropstat.prop;
+
+			if (prop.currentUserPrincipal != null && prop.currentUserPrincipal.getHref() != null)
+				properties.put(Property.CURRENT_USER_PRINCIPAL, prop.currentUserPrincipal.getHref().href);
+			
+			if (prop.currentUserPrivilegeSet != null) {
+				// privilege info available
+				boolean mayAll = false,
+						mayBind = false,
+						mayUnbind = false,
+						mayWrite = false,
+						mayWriteContent = false;
+				for (DavProp.Privilege privilege : prop.currentUserPrivilegeSet) {
+					if (privilege.getAll() != null) mayAll = true;
+					if (privilege.getBind() != null) mayBind = true;
+					if (privilege.getUnbind() != null) mayUnbind = true;
+					if (privilege.getWrite() != null) mayWrite = true;
+					if (privilege.getWriteContent() != null) mayWriteContent = true;
 				}
-				
-				if (prop.addressbookHomeSet != null && prop.addressbookHomeSet.getHref() != null)
-					properties.put(Property.ADDRESSBOOK_HOMESET, URIUtils.ensureTrailingSlash(prop.addressbookHomeSet.getHref().href));
-				
-				if (prop.calendarHomeSet != null && prop.calendarHomeSet.getHref() != null)
-					properties.put(Property.CALENDAR_HOMESET, URIUtils.ensureTrailingSlash(prop.calendarHomeSet.getHref().href));
-				
-				if (prop.displayname != null)
-					properties.put(Property.DISPLAY_NAME, prop.displayname.getDisplayName());
-				
-				if (prop.resourcetype != null) {
-					if (prop.resourcetype.getCollection() != null) {
-						properties.put(Property.IS_COLLECTION, "1");
-						// is a collection, ensure trailing slash
-						href = URIUtils.ensureTrailingSlash(href);
-					}
-					if (prop.resourcetype.getAddressbook() != null) {	// CardDAV collection properties
-						properties.put(Property.IS_ADDRESSBOOK, "1");
-						
-						if (prop.addressbookDescription != null)
-							properties.put(Property.DESCRIPTION, prop.addressbookDescription.getDescription());
-						if (prop.supportedAddressData != null)
-							for (DavProp.AddressDataType dataType : prop.supportedAddressData)
-								if ("text/vcard".equalsIgnoreCase(dataType.getContentType()))
-									// ignore "3.0" as it MUST be supported anyway
-									if ("4.0".equals(dataType.getVersion()))
-										properties.put(Property.VCARD_VERSION, VCardVersion.V4_0.getVersion());
-					}
-					if (prop.resourcetype.getCalendar() != null) {		// CalDAV collection propertioes
-						properties.put(Property.IS_CALENDAR, "1");
-						
-						if (prop.calendarDescription != null)
-							properties.put(Property.DESCRIPTION, prop.calendarDescription.getDescription());
-						
-						if (prop.calendarColor != null)
-							properties.put(Property.COLOR, prop.calendarColor.getColor());
-						
-						if (prop.calendarTimezone != null)
-							try {
-								properties.put(Property.TIMEZONE, Event.TimezoneDefToTzId(prop.calendarTimezone.getTimezone()));
-							} catch(IllegalArgumentException e) {
-							}
-						
-						if (prop.supportedCalendarComponentSet != null) {
-							supportedComponents = new LinkedList<String>();
-							for (Comp component : prop.supportedCalendarComponentSet)
-								supportedComponents.add(component.getName());
+				if (!mayAll && !mayWrite && !(mayWriteContent && mayBind && mayUnbind))
+					properties.put(Property.READ_ONLY, "1");
+			}
+			
+			if (prop.addressbookHomeSet != null && prop.addressbookHomeSet.getHref() != null)
+				properties.put(Property.ADDRESSBOOK_HOMESET, URIUtils.ensureTrailingSlash(prop.addressbookHomeSet.getHref().href));
+			
+			if (prop.calendarHomeSet != null && prop.calendarHomeSet.getHref() != null)
+				properties.put(Property.CALENDAR_HOMESET, URIUtils.ensureTrailingSlash(prop.calendarHomeSet.getHref().href));
+			
+			if (prop.displayname != null)
+				properties.put(Property.DISPLAY_NAME, prop.displayname.getDisplayName());
+			
+			if (prop.resourcetype != null) {
+				if (prop.resourcetype.getCollection() != null) {
+					properties.put(Property.IS_COLLECTION, "1");
+					// is a collection, ensure trailing slash
+					href = URIUtils.ensureTrailingSlash(href);
+				}
+				if (prop.resourcetype.getAddressbook() != null) {	// CardDAV collection properties
+					properties.put(Property.IS_ADDRESSBOOK, "1");
+					
+					if (prop.addressbookDescription != null)
+						properties.put(Property.DESCRIPTION, prop.addressbookDescription.getDescription());
+					if (prop.supportedAddressData != null)
+						for (DavProp.AddressDataType dataType : prop.supportedAddressData)
+							if ("text/vcard".equalsIgnoreCase(dataType.getContentType()))
+								// ignore "3.0" as it MUST be supported anyway
+								if ("4.0".equals(dataType.getVersion()))
+									properties.put(Property.VCARD_VERSION, VCardVersion.V4_0.getVersion());
+				}
+				if (prop.resourcetype.getCalendar() != null) {		// CalDAV collection propertioes
+					properties.put(Property.IS_CALENDAR, "1");
+					
+					if (prop.calendarDescription != null)
+						properties.put(Property.DESCRIPTION, prop.calendarDescription.getDescription());
+					
+					if (prop.calendarColor != null)
+						properties.put(Property.COLOR, prop.calendarColor.getColor());
+					
+					if (prop.calendarTimezone != null)
+						try {
+							properties.put(Property.TIMEZONE, Event.TimezoneDefToTzId(prop.calendarTimezone.getTimezone()));
+						} catch(IllegalArgumentException e) {
 						}
+					
+					if (prop.supportedCalendarComponentSet != null) {
+						supportedComponents = new LinkedList<String>();
+						for (Comp component : prop.supportedCalendarComponentSet)
+							supportedComponents.add(component.getName());
 					}
 				}
-				
-				if (prop.getctag != null)
-					properties.put(Property.CTAG, prop.getctag.getCTag());
-
-				if (prop.getetag != null)
-					properties.put(Property.ETAG, prop.getetag.getETag());
-				
-				if (prop.calendarData != null && prop.calendarData.ical != null)
-					data = prop.calendarData.ical.getBytes();
-				else if (prop.addressData != null && prop.addressData.vcard != null)
-					data = prop.addressData.vcard.getBytes();
 			}
 			
-			// about which resource is this response?
-			if (location.equals(href) || URIUtils.ensureTrailingSlash(location).equals(href)) {	// about ourselves
-				this.properties.putAll(properties);
-				if (supportedComponents != null)
-					this.supportedComponents = supportedComponents;
-				this.content = data;
-				
-			} else {						// about a member
-				WebDavResource member = new WebDavResource(this, href);
-				member.properties = properties;
-				member.supportedComponents = supportedComponents;
-				member.content = data;
-				
-				members.add(member);
-			}
+			if (prop.getctag != null)
+				properties.put(Property.CTAG, prop.getctag.getCTag());
+			
+			if (prop.syncToken != null && prop.syncToken.getToken() != null)
+				properties.put(Property.SYNC_TOKEN, prop.syncToken.getToken());
+
+			if (prop.getetag != null)
+				properties.put(Property.ETAG, prop.getetag.getETag());
+			
+			if (prop.calendarData != null && prop.calendarData.ical != null)
+				data = prop.calendarData.ical.getBytes();
+			else if (prop.addressData != null && prop.addressData.vcard != null)
+				data = prop.addressData.vcard.getBytes();
 		}
 		
-		this.members = members;
+		// about which resource is this response?
+		if (location.equals(href) || URIUtils.ensureTrailingSlash(location).equals(href)) {	// about ourselves
+			this.properties.putAll(properties);
+			if (supportedComponents != null)
+				this.supportedComponents = supportedComponents;
+			this.content = data;
+			return null;
+			
+		} else {						// about a member
+			WebDavResource member = new WebDavResource(this, href);
+			member.properties = properties;
+			member.supportedComponents = supportedComponents;
+			member.content = data;
+			return member;
+		}
 	}
 
 }